@@ -0,0 +1,427 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * An <tt>EventQueue</tt> holds the pending hardware interrupts, ordered by the
+ * time they are due and then by the order in which they were scheduled.
+ *
+ * <p>
+ * The queue is a binary min-heap of event numbers, with all of the per-event
+ * state kept in parallel primitive arrays. Devices that interrupt over and
+ * over (the timer, the console, the network link) register their events once
+ * and reschedule the same event number every time, so scheduling and
+ * dispatching them creates no garbage. One-shot events get a number from a
+ * free list, which is returned when the event is removed.
+ */
+public final class EventQueue {
+	/**
+	 * Allocate a new, empty event queue.
+	 */
+	public EventQueue() {
+		grow(initialCapacity);
+	}
+
+	/**
+	 * Register a recurring event. The event does not become pending until it
+	 * is passed to <tt>schedule()</tt>.
+	 *
+	 * @param type a name for the type of event.
+	 * @param handler the interrupt handler to call.
+	 * @return the number of the new event.
+	 */
+	int register(String type, Runnable handler) {
+		int event = allocate(type, handler);
+		recurring[event] = true;
+		return event;
+	}
+
+	/**
+	 * Make a registered event pending. If the event is already pending, a
+	 * one-shot copy of it is scheduled instead, so that it occurs twice.
+	 *
+	 * @param time the time at which the event should occur.
+	 * @param event the number returned by <tt>register()</tt>.
+	 */
+	void schedule(long time, int event) {
+		Lib.assertTrue(recurring[event]);
+
+		if (position[event] != -1)
+			event = allocate(types[event], handlers[event]);
+
+		insert(event, time);
+	}
+
+	/**
+	 * Schedule a one-shot event.
+	 *
+	 * @param time the time at which the event should occur.
+	 * @param type a name for the type of event.
+	 * @param handler the interrupt handler to call.
+	 */
+	void schedule(long time, String type, Runnable handler) {
+		insert(allocate(type, handler), time);
+	}
+
+	/**
+	 * Test whether any events are pending.
+	 *
+	 * @return <tt>true</tt> if no events are pending.
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Return the time of the earliest pending event.
+	 *
+	 * @return the time of the first event, or <tt>Long.MAX_VALUE</tt> if there
+	 * are none.
+	 */
+	long firstTime() {
+		return (size == 0) ? Long.MAX_VALUE : times[heap[0]];
+	}
+
+	/**
+	 * Remove the earliest pending event. A one-shot event's number remains
+	 * valid for <tt>getType()</tt> and <tt>getHandler()</tt> until it is
+	 * passed to <tt>free()</tt>.
+	 *
+	 * @return the number of the event removed.
+	 */
+	int removeFirst() {
+		Lib.assertTrue(size > 0);
+
+		int event = heap[0];
+		position[event] = -1;
+
+		size--;
+		if (size > 0) {
+			heap[0] = heap[size];
+			position[heap[0]] = 0;
+			siftDown(0);
+		}
+
+		return event;
+	}
+
+	/**
+	 * Release the number of an event returned by <tt>removeFirst()</tt>, if it
+	 * was a one-shot event.
+	 *
+	 * @param event the event number.
+	 */
+	void free(int event) {
+		if (recurring[event])
+			return;
+
+		types[event] = null;
+		handlers[event] = null;
+		freeEvents[numFree++] = event;
+	}
+
+	/**
+	 * Return the time at which a pending event is due.
+	 *
+	 * @param event the event number.
+	 * @return the time of the event.
+	 */
+	long getTime(int event) {
+		return times[event];
+	}
+
+	/**
+	 * Return the name of an event's type.
+	 *
+	 * @param event the event number.
+	 * @return the type of the event.
+	 */
+	String getType(int event) {
+		return types[event];
+	}
+
+	/**
+	 * Return an event's interrupt handler.
+	 *
+	 * @param event the event number.
+	 * @return the handler of the event.
+	 */
+	Runnable getHandler(int event) {
+		return handlers[event];
+	}
+
+	/**
+	 * Return the numbers of all pending events, in the order they will occur.
+	 * Only meant for debugging output, so it is allowed to be slow.
+	 *
+	 * @return the pending events.
+	 */
+	int[] getPending() {
+		int[] events = Arrays.copyOf(heap, size);
+
+		for (int i = 1; i < size; i++) {
+			int event = events[i], j = i;
+			for (; j > 0 && before(event, events[j - 1]); j--)
+				events[j] = events[j - 1];
+			events[j] = event;
+		}
+
+		return events;
+	}
+
+	private int allocate(String type, Runnable handler) {
+		if (numFree == 0)
+			grow(types.length * 2);
+
+		int event = freeEvents[--numFree];
+
+		types[event] = type;
+		handlers[event] = handler;
+		recurring[event] = false;
+		position[event] = -1;
+
+		return event;
+	}
+
+	private void grow(int capacity) {
+		int oldCapacity = types.length;
+
+		times = Arrays.copyOf(times, capacity);
+		sequence = Arrays.copyOf(sequence, capacity);
+		position = Arrays.copyOf(position, capacity);
+		recurring = Arrays.copyOf(recurring, capacity);
+		types = Arrays.copyOf(types, capacity);
+		handlers = Arrays.copyOf(handlers, capacity);
+		heap = Arrays.copyOf(heap, capacity);
+		freeEvents = Arrays.copyOf(freeEvents, capacity);
+
+		// hand out low numbers first
+		for (int event = capacity - 1; event >= oldCapacity; event--)
+			freeEvents[numFree++] = event;
+	}
+
+	private void insert(int event, long time) {
+		times[event] = time;
+		sequence[event] = numScheduled++;
+
+		heap[size] = event;
+		position[event] = size;
+		size++;
+
+		siftUp(size - 1);
+	}
+
+	private boolean before(int a, int b) {
+		if (times[a] != times[b])
+			return times[a] < times[b];
+		else
+			return sequence[a] < sequence[b];
+	}
+
+	private void siftUp(int i) {
+		int event = heap[i];
+
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(event, heap[parent]))
+				break;
+
+			heap[i] = heap[parent];
+			position[heap[i]] = i;
+			i = parent;
+		}
+
+		heap[i] = event;
+		position[event] = i;
+	}
+
+	private void siftDown(int i) {
+		int event = heap[i];
+
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+
+			if (child + 1 < size && before(heap[child + 1], heap[child]))
+				child++;
+
+			if (!before(heap[child], event))
+				break;
+
+			heap[i] = heap[child];
+			position[heap[i]] = i;
+			i = child;
+		}
+
+		heap[i] = event;
+		position[event] = i;
+	}
+
+	/**
+	 * Check that this queue dispatches events in the same order as a
+	 * <tt>TreeSet</tt> ordered by (time, sequence).
+	 */
+	public static void selfTest() {
+		Runnable nothing = new Runnable() {
+			public void run() {
+			}
+		};
+
+		EventQueue queue = new EventQueue();
+		TreeSet<long[]> tree = new TreeSet<long[]>(new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				if (a[0] != b[0])
+					return (a[0] < b[0]) ? -1 : 1;
+				else
+					return (a[1] < b[1]) ? -1 : (a[1] > b[1]) ? 1 : 0;
+			}
+		});
+		Random random = new Random(0);
+		long seq = 0;
+
+		for (int i = 0; i < 2000; i++) {
+			if (queue.isEmpty() || random.nextInt(3) != 0) {
+				long time = random.nextInt(50);
+				queue.schedule(time, "test", nothing);
+				tree.add(new long[] { time, seq++ });
+			}
+			else {
+				long[] first = tree.pollFirst();
+				int event = queue.removeFirst();
+				Lib.assertTrue(queue.getTime(event) == first[0]
+						&& queue.sequence[event] == first[1]);
+				queue.free(event);
+			}
+		}
+	}
+
+	/**
+	 * Compare how long this queue and a <tt>TreeSet</tt> take to run a
+	 * device-heavy schedule: a timer every ~500 ticks followed by its
+	 * autograder interrupt, console polling every 100 ticks, and network
+	 * polling every 100 ticks.
+	 */
+	public static void benchmark() {
+		final int rounds = 1000000;
+
+		Runnable nothing = new Runnable() {
+			public void run() {
+			}
+		};
+
+		System.out.println("EventQueue: " + time(new EventQueue(), nothing,
+				rounds) + " ns/event, TreeSet: " + timeTreeSet(nothing, rounds)
+				+ " ns/event");
+	}
+
+	private static long time(EventQueue queue, Runnable handler, int rounds) {
+		int timer = queue.register("timer", handler);
+		int console = queue.register("console read", handler);
+		int network = queue.register("network recv", handler);
+		long now = 0;
+
+		queue.schedule(500, timer);
+		queue.schedule(100, console);
+		queue.schedule(100, network);
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < rounds; i++) {
+			int event = queue.removeFirst();
+			now = queue.getTime(event);
+
+			if (event == timer) {
+				queue.schedule(now + 475 + (i % 50), timer);
+				queue.schedule(now + 1, "timerAG", handler);
+			}
+			else if (event == console || event == network) {
+				queue.schedule(now + 100, event);
+			}
+
+			queue.free(event);
+		}
+
+		return (System.nanoTime() - start) / rounds;
+	}
+
+	private static long timeTreeSet(Runnable handler, int rounds) {
+		final class Pending implements Comparable<Pending> {
+			Pending(long time, long id, String type) {
+				this.time = time;
+				this.id = id;
+				this.type = type;
+			}
+
+			public int compareTo(Pending p) {
+				if (time != p.time)
+					return (time < p.time) ? -1 : 1;
+				else
+					return (id < p.id) ? -1 : (id > p.id) ? 1 : 0;
+			}
+
+			long time, id;
+
+			String type;
+		}
+
+		TreeSet<Pending> pending = new TreeSet<Pending>();
+		long id = 0;
+
+		pending.add(new Pending(500, id++, "timer"));
+		pending.add(new Pending(100, id++, "console read"));
+		pending.add(new Pending(100, id++, "network recv"));
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < rounds; i++) {
+			Pending next = pending.pollFirst();
+			long now = next.time;
+
+			if (next.type.equals("timer")) {
+				pending.add(new Pending(now + 475 + (i % 50), id++, "timer"));
+				pending.add(new Pending(now + 1, id++, "timerAG"));
+			}
+			else if (!next.type.equals("timerAG")) {
+				pending.add(new Pending(now + 100, id++, next.type));
+			}
+		}
+
+		return (System.nanoTime() - start) / rounds;
+	}
+
+	/** The time at which each pending event is due. */
+	private long[] times = new long[0];
+
+	/** Breaks ties between events due at the same time. */
+	private long[] sequence = new long[0];
+
+	/** Each event's index in <tt>heap</tt>, or -1 if it is not pending. */
+	private int[] position = new int[0];
+
+	/** True for events from <tt>register()</tt>, which are never freed. */
+	private boolean[] recurring = new boolean[0];
+
+	private String[] types = new String[0];
+
+	private Runnable[] handlers = new Runnable[0];
+
+	/** The pending events, as a binary min-heap. */
+	private int[] heap = new int[0];
+
+	private int size = 0;
+
+	/** A stack of unused event numbers. */
+	private int[] freeEvents = new int[0];
+
+	private int numFree = 0;
+
+	private long numScheduled = 0;
+
+	private static final int initialCapacity = 16;
+}
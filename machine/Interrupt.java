@@ -4,9 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +49,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new EventQueue();
 	}
 
 	/**
@@ -119,16 +116,58 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Advance simulated time straight to the earliest pending interrupt, and
+	 * invoke the handlers that are then due. The skipped time is charged to
+	 * <tt>Stats.idleTicks</tt>. Only call this when no thread is ready to run,
+	 * so that nothing can happen before the next interrupt anyway. Interrupts
+	 * must be disabled.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		Stats stats = privilege.stats;
+		long time = pending.firstTime();
+
+		if (time == Long.MAX_VALUE)
+			return;
+
+		if (time > stats.totalTicks) {
+			Lib.debug(dbgInt, "Idle until time = " + time);
+
+			stats.idleTicks += time - stats.totalTicks;
+			stats.totalTicks = time;
+		}
+
+		checkIfDue();
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		pending.schedule(time, type, handler);
+
+		if (time < nextDueTime)
+			nextDueTime = time;
+	}
+
+	private void schedule(long when, int event) {
+		Lib.assertTrue(when > 0);
+
+		long time = privilege.stats.totalTicks + when;
+
+		Lib.debug(dbgInt, "Scheduling the " + pending.getType(event)
+				+ " interrupt handler at time = " + time);
+
+		pending.schedule(time, event);
+
+		if (time < nextDueTime)
+			nextDueTime = time;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -143,6 +182,10 @@ public final class Interrupt {
 			stats.totalTicks += Stats.UserTick;
 		}
 
+		// nothing can be due before the earliest pending interrupt
+		if (stats.totalTicks < nextDueTime && !Lib.test(dbgInt))
+			return;
+
 		if (Lib.test(dbgInt))
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
@@ -159,29 +202,27 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.firstTime() > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (pending.firstTime() <= time) {
+			int next = pending.removeFirst();
+			String type = pending.getType(next);
+			Runnable handler = pending.getHandler(next);
+			pending.free(next);
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
+		nextDueTime = pending.firstTime();
+
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
@@ -190,55 +231,27 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		int[] events = pending.getPending();
+		for (int i = 0; i < events.length; i++) {
+			System.out.println("  " + pending.getType(events[i])
+					+ ", scheduled at " + pending.getTime(events[i]));
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
-
-		long time;
-
-		String type;
-
-		Runnable handler;
-
-		private long id;
-	}
-
-	private long numPendingInterruptsCreated = 0;
+	/**
+	 * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+	 * if there are none. Lets <tt>tick()</tt> skip <tt>checkIfDue()</tt>
+	 * until some interrupt is actually due.
+	 */
+	private long nextDueTime = Long.MAX_VALUE;
 
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private EventQueue pending;
 
 	private static final char dbgInt = 'i';
 
@@ -247,6 +260,14 @@ public final class Interrupt {
 			Interrupt.this.schedule(when, type, handler);
 		}
 
+		public int registerEvent(String type, Runnable handler) {
+			return pending.register(type, handler);
+		}
+
+		public void scheduleEvent(long when, int event) {
+			Interrupt.this.schedule(when, event);
+		}
+
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
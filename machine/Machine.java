@@ -188,6 +188,10 @@ public final class Machine {
 
 		if (Config.getBoolean("Machine.networkLink"))
 			networkLink = new NetworkLink(privilege);
+
+		if (Config.getBoolean("Machine.swapDevice", false))
+			swapDevice = new SwapDevice(privilege, new File(testDirectory,
+					Config.getString("SwapDevice.fileName", "nachos.swp")));
 	}
 
 	private static void checkUserClasses() {
@@ -358,6 +362,15 @@ public final class Machine {
 		return networkLink;
 	}
 
+	/**
+	 * Return the swap device.
+	 * 
+	 * @return the swap device, or <tt>null</tt> if it is not present.
+	 */
+	public static SwapDevice swapDevice() {
+		return swapDevice;
+	}
+
 	/**
 	 * Return the autograder.
 	 * 
@@ -381,6 +394,8 @@ public final class Machine {
 
 	private static NetworkLink networkLink = null;
 
+	private static SwapDevice swapDevice = null;
+
 	private static AutoGrader autoGrader = null;
 
 	private static String autoGraderClassName = "nachos.ag.AutoGrader";
@@ -117,6 +117,11 @@ public class NetworkLink {
 			}
 		};
 
+		receiveEvent = privilege.interrupt.registerEvent("network recv",
+				receiveInterrupt);
+		sendEvent = privilege.interrupt.registerEvent("network send",
+				sendInterrupt);
+
 		scheduleReceiveInterrupt();
 
 		Thread receiveThread = new Thread(new Runnable() {
@@ -161,8 +166,7 @@ public class NetworkLink {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				receiveInterrupt);
+		privilege.interrupt.scheduleEvent(Stats.NetworkTime, receiveEvent);
 	}
 
 	private synchronized void receiveInterrupt() {
@@ -245,8 +249,7 @@ public class NetworkLink {
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				sendInterrupt);
+		privilege.interrupt.scheduleEvent(Stats.NetworkTime, sendEvent);
 	}
 
 	private void sendInterrupt() {
@@ -321,6 +324,8 @@ public class NetworkLink {
 
 	private Runnable sendInterrupt;
 
+	private int receiveEvent, sendEvent;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,6 +48,10 @@ public final class Processor {
 		mainMemory = new byte[pageSize * numPhysPages];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			// an instruction that loads or stores needs two translations
+			Lib.assertTrue(tlbSize >= 2, "Processor.tlbSize must be at least 2");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -53,6 +59,25 @@ public final class Processor {
 		else {
 			translations = null;
 		}
+
+		// the disassembler needs the slow path, so it can print as it decodes
+		if (Config.getBoolean("Processor.decodeCache", true)
+				&& !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble))
+			decodeCache = new int[numPhysPages][];
+		else
+			decodeCache = null;
+
+		// translated blocks skip the disassembler, just like the decode cache
+		if (decodeCache != null
+				&& Config.getBoolean("Processor.translation", false)) {
+			blockCache = new Block[numPhysPages][];
+			hotCounts = new int[numPhysPages][];
+		}
+		else {
+			blockCache = null;
+			hotCounts = null;
+		}
 	}
 
 	/**
@@ -93,7 +118,10 @@ public final class Processor {
 
 		while (true) {
 			try {
-				inst.run();
+				if (blockCache != null)
+					dispatch(inst);
+				else
+					inst.run();
 			}
 			catch (MipsException e) {
 				e.handle();
@@ -126,6 +154,8 @@ public final class Processor {
 
 		if (number != 0)
 			registers[number] = value;
+
+		epoch++;
 	}
 
 	/**
@@ -173,6 +203,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		epoch++;
 	}
 
 	/**
@@ -214,6 +245,7 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		epoch++;
 	}
 
 	/**
@@ -317,12 +349,18 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through all TLB entries for matching vpn, starting with
+		// the one that matched last time, since most references repeat it
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
+			entry = translations[lastTLBHit];
+			if (!entry.valid || entry.vpn != vpn) {
+				entry = null;
+				for (int i = 0; i < tlbSize; i++) {
+					if (translations[i].valid && translations[i].vpn == vpn) {
+						entry = translations[i];
+						lastTLBHit = i;
+						break;
+					}
 				}
 			}
 			if (entry == null) {
@@ -400,7 +438,151 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		if (decodeCache != null) {
+			int ppn = paddr / pageSize;
+
+			decodeCache[ppn] = null;
+			if (blockCache != null && blockCache[ppn] != null)
+				invalidateBlocks(ppn);
+		}
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+	}
+
+	/**
+	 * Discard any pre-decoded instructions and translated blocks cached for
+	 * the specified physical page. Called whenever the contents of the page
+	 * are replaced with code, by <tt>CoffSection.loadPage()</tt> or by any
+	 * other loader.
+	 *
+	 * @param ppn the physical page whose contents changed.
+	 */
+	public void invalidateDecodeCache(int ppn) {
+		if (decodeCache != null)
+			decodeCache[ppn] = null;
+
+		if (blockCache != null)
+			invalidateBlocks(ppn);
+	}
+
+	private void invalidateBlocks(int ppn) {
+		blockCache[ppn] = null;
+		hotCounts[ppn] = null;
+
+		// the block being executed may be one of them
+		epoch++;
+	}
+
+	/**
+	 * Execute the instruction at the current PC, either by running the
+	 * translated block starting there, or by interpreting it. Blocks are
+	 * translated once the instruction at their first address has been
+	 * interpreted <tt>hotThreshold</tt> times.
+	 *
+	 * @param inst the interpreter to fall back on.
+	 * @exception MipsException if the instruction caused an exception.
+	 */
+	private void dispatch(Instruction inst) throws MipsException {
+		int paddr = translate(registers[regPC], 4, false);
+
+		// blocks assume they start outside of a delay slot
+		if (registers[regNextPC] != registers[regPC] + 4) {
+			inst.run(paddr);
+			return;
+		}
+
+		int ppn = paddr / pageSize;
+		int word = (paddr % pageSize) / 4;
+
+		Block[] blocks = blockCache[ppn];
+		if (blocks != null && blocks[word] != null) {
+			Block block = blocks[word];
+
+			if (block.epoch == epoch || block.validate()) {
+				block.run(inst);
+				return;
+			}
+
+			blocks[word] = null;
+		}
+
+		int[] counts = hotCounts[ppn];
+		if (counts == null) {
+			counts = new int[pageSize / 4];
+			hotCounts[ppn] = counts;
+		}
+
+		if (++counts[word] >= hotThreshold) {
+			Block block = translateBlock(paddr);
+
+			if (block == null) {
+				// not worth trying again
+				counts[word] = Integer.MIN_VALUE;
+			}
+			else {
+				counts[word] = 0;
+
+				if (blocks == null) {
+					blocks = new Block[pageSize / 4];
+					blockCache[ppn] = blocks;
+				}
+				blocks[word] = block;
+
+				block.run(inst);
+				return;
+			}
+		}
+
+		inst.run(paddr);
+	}
+
+	/**
+	 * Translate the basic block starting at the specified physical address.
+	 * The block ends at the first instruction that cannot be translated, at
+	 * the end of the page, or after the delay slot of the first branch.
+	 *
+	 * @param paddr the physical address of the first instruction.
+	 * @return the translated block, or <tt>null</tt> if the first instruction
+	 * cannot be translated.
+	 */
+	private Block translateBlock(int paddr) {
+		Instruction decoder = new Instruction();
+		int end = (paddr / pageSize + 1) * pageSize;
+
+		int[] raw = new int[maxBlockLength];
+		int[] code = new int[maxBlockLength * Block.stride];
+		int length = 0;
+		boolean inDelaySlot = false;
+
+		for (int addr = paddr; addr < end && length < maxBlockLength; addr += 4) {
+			decoder.value = Lib.bytesToInt(mainMemory, addr);
+			decoder.decodeInstruction();
+
+			boolean isBranch = decoder.test(Mips.BRANCH);
+			if (inDelaySlot && isBranch)
+				break;
+
+			if (!compile(decoder, code, length * Block.stride))
+				break;
+
+			raw[length++] = decoder.value;
+
+			if (inDelaySlot)
+				break;
+
+			inDelaySlot = isBranch;
+		}
+
+		if (length == 0)
+			return null;
+
+		Lib.debug(dbgTranslate, "translated " + length
+				+ " instructions at paddr=0x" + Lib.toHexString(paddr));
+
+		return new Block(paddr, Arrays.copyOf(raw, length), Arrays.copyOf(
+				code, length * Block.stride));
 	}
 
 	/**
@@ -547,9 +729,12 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
-	/** Number of TLB entries. */
+	/** Number of TLB entries, set by <tt>Processor.tlbSize</tt>. */
 	private int tlbSize = 4;
 
+	/** The TLB entry that satisfied the last lookup. */
+	private int lastTLBHit = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -568,6 +753,55 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Pre-decoded instructions, indexed by physical page number, or
+	 * <tt>null</tt> if the decode cache is disabled. A page's array is
+	 * allocated the first time an instruction is fetched from it, and holds
+	 * <tt>decodeStride</tt> ints for each word in the page: the raw
+	 * instruction, the packed operation, format, access size and flags, the
+	 * packed register operands, and the processed immediate.
+	 *
+	 * <p>
+	 * The raw instruction is compared against memory on every fetch, so a page
+	 * modified behind the processor's back (through <tt>getMemory()</tt>) is
+	 * still decoded correctly.
+	 */
+	private int[][] decodeCache;
+
+	/** The number of ints cached per instruction word. */
+	private static final int decodeStride = 4;
+
+	/** Set in a cached entry's info word once the entry has been filled. */
+	private static final int decodeValid = 0x80000000;
+
+	/**
+	 * Translated blocks, indexed by physical page number and then by the word
+	 * within the page at which they start, or <tt>null</tt> if the translation
+	 * tier is disabled.
+	 */
+	private Block[][] blockCache;
+
+	/**
+	 * The number of times the instruction at each physical word has been
+	 * interpreted, indexed like <tt>blockCache</tt>.
+	 */
+	private int[][] hotCounts;
+
+	/**
+	 * Incremented whenever something outside the running block could have
+	 * changed the processor state it depends on: a register or address
+	 * translation written by the kernel, an exception, an interrupt, or a
+	 * write to a page holding translated code. A block stops as soon as it
+	 * notices, and is revalidated against memory before it is entered again.
+	 */
+	private int epoch = 0;
+
+	/** The number of interpretations after which a block is translated. */
+	private static final int hotThreshold = 32;
+
+	/** The maximum number of instructions in a translated block. */
+	private static final int maxBlockLength = 64;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -577,9 +811,12 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgTranslate = 'b';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			epoch++;
 		}
 	}
 
@@ -607,6 +844,7 @@ public final class Processor {
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
+			epoch++;
 
 			Lib.assertTrue(exceptionHandler != null);
 
@@ -625,8 +863,25 @@ public final class Processor {
 	private class Instruction {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
-			fetch();
-			decode();
+			if (decodeCache != null) {
+				fetchDecoded();
+				readOperands();
+			}
+			else {
+				fetch();
+				decode();
+			}
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Execute the instruction at the specified physical address, which the
+		 * current PC has already been translated to.
+		 */
+		public void run(int paddr) throws MipsException {
+			fetchDecoded(paddr);
+			readOperands();
 			execute();
 			writeBack();
 		}
@@ -644,7 +899,72 @@ public final class Processor {
 			value = readMem(registers[regPC], 4);
 		}
 
+		/**
+		 * Fetch the instruction at the current PC, and fill in everything
+		 * <tt>decodeInstruction()</tt> would from the decode cache. The
+		 * translation is still performed on every fetch, so that page faults,
+		 * TLB misses, and used bits behave exactly as they do in
+		 * <tt>fetch()</tt>.
+		 */
+		private void fetchDecoded() throws MipsException {
+			fetchDecoded(translate(registers[regPC], 4, false));
+		}
+
+		private void fetchDecoded(int paddr) {
+			int ppn = paddr / pageSize;
+
+			value = Lib.bytesToInt(mainMemory, paddr);
+
+			int[] page = decodeCache[ppn];
+			if (page == null) {
+				page = new int[(pageSize / 4) * decodeStride];
+				decodeCache[ppn] = page;
+			}
+
+			int entry = ((paddr % pageSize) / 4) * decodeStride;
+
+			if ((page[entry + 1] & decodeValid) != 0 && page[entry] == value) {
+				int info = page[entry + 1];
+				operation = info & 0xFF;
+				format = (info >>> 8) & 0x3;
+				size = (info >>> 10) & 0x7;
+				flags = (info >>> 16) & 0xFFF;
+
+				int regs = page[entry + 2];
+				rs = regs & 0x1F;
+				rt = (regs >>> 5) & 0x1F;
+				rd = (regs >>> 10) & 0x1F;
+				sh = (regs >>> 15) & 0x1F;
+				dstReg = ((regs >>> 20) & 0x3F) - 1;
+
+				imm = page[entry + 3];
+				target = Lib.extract(value, 0, 26);
+			}
+			else {
+				decodeInstruction();
+
+				page[entry] = value;
+				page[entry + 1] = decodeValid | (flags << 16) | (size << 10)
+						| (format << 8) | operation;
+				page[entry + 2] = ((dstReg + 1) << 20) | (sh << 15)
+						| (rd << 10) | (rt << 5) | rs;
+				page[entry + 3] = imm;
+			}
+		}
+
 		private void decode() {
+			decodeInstruction();
+			readOperands();
+
+			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+				print();
+		}
+
+		/**
+		 * Decode the parts of the instruction that depend only on the
+		 * instruction word itself.
+		 */
+		private void decodeInstruction() {
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -672,9 +992,6 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
 			if (test(Mips.SIZEB))
 				size = 1;
@@ -685,9 +1002,6 @@ public final class Processor {
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
 			if (test(Mips.DSTRA))
 				dstReg = regRA;
@@ -698,6 +1012,23 @@ public final class Processor {
 			else
 				dstReg = -1;
 
+			// get imm
+			if (test(Mips.UNSIGNED)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		/**
+		 * Decode the parts of the instruction that depend on the current
+		 * register contents.
+		 */
+		private void readOperands() {
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -708,11 +1039,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -732,9 +1058,6 @@ public final class Processor {
 				src1 &= 0xFFFFFFFFL;
 				src2 &= 0xFFFFFFFFL;
 			}
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
 		}
 
 		private void print() {
@@ -1085,6 +1408,501 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * Compile the instruction just decoded by <tt>inst</tt> into the
+	 * block micro-operation at the specified position of <tt>code</tt>.
+	 *
+	 * @return <tt>false</tt> if the instruction must be interpreted.
+	 */
+	private static boolean compile(Instruction inst, int[] code, int pos) {
+		int rs = inst.rs, rt = inst.rt, dst = inst.dstReg, imm = inst.imm;
+		int op, a = dst, b = rs, c = inst.test(Mips.SRC2IMM) ? imm : rt;
+
+		switch (inst.operation) {
+		case Mips.ADD:
+			if (inst.test(Mips.OVERFLOW))
+				op = inst.test(Mips.SRC2IMM) ? Block.ADDI : Block.ADD;
+			else
+				op = inst.test(Mips.SRC2IMM) ? Block.ADDIU : Block.ADDU;
+			break;
+		case Mips.SUB:
+			op = inst.test(Mips.OVERFLOW) ? Block.SUB : Block.SUBU;
+			break;
+		case Mips.AND:
+			op = inst.test(Mips.SRC2IMM) ? Block.ANDI : Block.AND;
+			break;
+		case Mips.OR:
+			op = inst.test(Mips.SRC2IMM) ? Block.ORI : Block.OR;
+			break;
+		case Mips.XOR:
+			op = inst.test(Mips.SRC2IMM) ? Block.XORI : Block.XOR;
+			break;
+		case Mips.NOR:
+			op = Block.NOR;
+			break;
+		case Mips.LUI:
+			op = Block.LI;
+			c = imm << 16;
+			break;
+		case Mips.SLT:
+			if (inst.test(Mips.UNSIGNED))
+				op = inst.test(Mips.SRC2IMM) ? Block.SLTIU : Block.SLTU;
+			else
+				op = inst.test(Mips.SRC2IMM) ? Block.SLTI : Block.SLT;
+			break;
+
+		// the interpreter shifts a sign-extended long, so SRL is really Block.SRA
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+			boolean left = (inst.operation == Mips.SLL);
+			b = rt;
+			if (inst.test(Mips.SRC1SH)) {
+				op = left ? Block.SLL : Block.SRA;
+				c = inst.sh;
+			}
+			else {
+				op = left ? Block.SLLV : Block.SRAV;
+				c = rs;
+			}
+			break;
+
+		case Mips.MULT:
+			op = inst.test(Mips.UNSIGNED) ? Block.MULTU : Block.MULT;
+			break;
+		case Mips.DIV:
+			op = inst.test(Mips.UNSIGNED) ? Block.DIVU : Block.DIV;
+			break;
+		case Mips.MFLO:
+			op = Block.MFLO;
+			break;
+		case Mips.MFHI:
+			op = Block.MFHI;
+			break;
+		case Mips.MTLO:
+			op = Block.MTLO;
+			break;
+		case Mips.MTHI:
+			op = Block.MTHI;
+			break;
+
+		// readMem() already sign-extends, so the unsigned loads are the same
+		case Mips.LOAD:
+			op = (inst.size == 1) ? Block.LB : (inst.size == 2) ? Block.LH : Block.LW;
+			a = rt;
+			c = imm;
+			break;
+		case Mips.STORE:
+			op = (inst.size == 1) ? Block.SB : (inst.size == 2) ? Block.SH : Block.SW;
+			a = rt;
+			c = imm;
+			break;
+
+		case Mips.BEQ:
+		case Mips.BNE:
+			op = (inst.operation == Mips.BEQ) ? Block.BEQ : Block.BNE;
+			a = rs;
+			b = rt;
+			c = imm << 2;
+			break;
+		case Mips.BLEZ:
+			op = Block.BLEZ;
+			c = imm << 2;
+			break;
+		case Mips.BGTZ:
+			op = Block.BGTZ;
+			c = imm << 2;
+			break;
+		case Mips.BLTZ:
+			op = inst.test(Mips.LINK) ? Block.BLTZAL : Block.BLTZ;
+			c = imm << 2;
+			break;
+		case Mips.BGEZ:
+			op = inst.test(Mips.LINK) ? Block.BGEZAL : Block.BGEZ;
+			c = imm << 2;
+			break;
+		case Mips.JUMP:
+			if (inst.format == Mips.JFMT) {
+				op = inst.test(Mips.LINK) ? Block.JAL : Block.J;
+				c = inst.target << 2;
+			}
+			else {
+				op = (inst.test(Mips.LINK) && dst != 0) ? Block.JALR : Block.JR;
+			}
+			break;
+
+		default:
+			return false;
+		}
+
+		// writes to r0 are discarded, but overflow must still be checked
+		if (inst.test(Mips.DST) && !inst.test(Mips.BRANCH) && dst == 0
+				&& op != Block.ADD && op != Block.ADDI && op != Block.SUB)
+			op = Block.NOP;
+
+		code[pos] = op;
+		code[pos + 1] = a;
+		code[pos + 2] = b;
+		code[pos + 3] = c;
+		return true;
+	}
+
+	/**
+	 * A straight-line run of instructions within one physical page, compiled
+	 * into micro-operations whose operands and immediates are resolved ahead
+	 * of time. Running a block has exactly the same effect as interpreting
+	 * each of its instructions in turn: the clock still ticks after every
+	 * instruction, delayed loads and branch delay slots behave the same way,
+	 * and exceptions leave the PC at the faulting instruction.
+	 */
+	private class Block {
+		Block(int paddr, int[] raw, int[] code) {
+			this.paddr = paddr;
+			this.raw = raw;
+			this.code = code;
+			this.epoch = Processor.this.epoch;
+		}
+
+		/**
+		 * Check that the instructions this block was translated from are still
+		 * in memory.
+		 *
+		 * @return <tt>true</tt> if the block may still be run.
+		 */
+		boolean validate() {
+			for (int i = 0; i < raw.length; i++) {
+				if (Lib.bytesToInt(mainMemory, paddr + i * 4) != raw[i])
+					return false;
+			}
+
+			epoch = Processor.this.epoch;
+			return true;
+		}
+
+		/**
+		 * Run this block, starting with the instruction at the current PC,
+		 * whose address has already been translated. Stops early, finishing
+		 * with the interpreter, if the epoch changes in between instructions.
+		 *
+		 * @param inst the interpreter to fall back on.
+		 * @exception MipsException if an instruction caused an exception.
+		 */
+		void run(Instruction inst) throws MipsException {
+			int[] r = registers;
+			int startEpoch = Processor.this.epoch;
+
+			for (int i = 0;;) {
+				int a = code[i + 1], b = code[i + 2], c = code[i + 3];
+				int nextPC = r[regNextPC] + 4;
+				int value;
+				long src1, src2;
+
+				switch (code[i]) {
+				case NOP:
+					finishLoad();
+					break;
+
+				case ADDU:
+					value = r[b] + r[c];
+					finishLoad();
+					r[a] = value;
+					break;
+				case ADDIU:
+					value = r[b] + c;
+					finishLoad();
+					r[a] = value;
+					break;
+				case ADD:
+					value = add(r[b], r[c]);
+					finishLoad();
+					if (a != 0)
+						r[a] = value;
+					break;
+				case ADDI:
+					value = add(r[b], c);
+					finishLoad();
+					if (a != 0)
+						r[a] = value;
+					break;
+				case SUBU:
+					value = r[b] - r[c];
+					finishLoad();
+					r[a] = value;
+					break;
+				case SUB:
+					value = add(r[b], -(long) r[c]);
+					finishLoad();
+					if (a != 0)
+						r[a] = value;
+					break;
+
+				case AND:
+					value = r[b] & r[c];
+					finishLoad();
+					r[a] = value;
+					break;
+				case ANDI:
+					value = r[b] & c;
+					finishLoad();
+					r[a] = value;
+					break;
+				case OR:
+					value = r[b] | r[c];
+					finishLoad();
+					r[a] = value;
+					break;
+				case ORI:
+					value = r[b] | c;
+					finishLoad();
+					r[a] = value;
+					break;
+				case XOR:
+					value = r[b] ^ r[c];
+					finishLoad();
+					r[a] = value;
+					break;
+				case XORI:
+					value = r[b] ^ c;
+					finishLoad();
+					r[a] = value;
+					break;
+				case NOR:
+					value = ~(r[b] | r[c]);
+					finishLoad();
+					r[a] = value;
+					break;
+				case LI:
+					finishLoad();
+					r[a] = c;
+					break;
+
+				case SLT:
+					value = (r[b] < r[c]) ? 1 : 0;
+					finishLoad();
+					r[a] = value;
+					break;
+				case SLTI:
+					value = (r[b] < c) ? 1 : 0;
+					finishLoad();
+					r[a] = value;
+					break;
+				case SLTU:
+					value = ((r[b] & 0xFFFFFFFFL) < (r[c] & 0xFFFFFFFFL)) ? 1 : 0;
+					finishLoad();
+					r[a] = value;
+					break;
+				case SLTIU:
+					value = ((r[b] & 0xFFFFFFFFL) < c) ? 1 : 0;
+					finishLoad();
+					r[a] = value;
+					break;
+
+				case SLL:
+					value = r[b] << c;
+					finishLoad();
+					r[a] = value;
+					break;
+				case SRA:
+					value = r[b] >> c;
+					finishLoad();
+					r[a] = value;
+					break;
+				case SLLV:
+					value = r[b] << (r[c] & 0x1F);
+					finishLoad();
+					r[a] = value;
+					break;
+				case SRAV:
+					value = r[b] >> (r[c] & 0x1F);
+					finishLoad();
+					r[a] = value;
+					break;
+
+				case MULT:
+					src1 = (long) r[b] * r[c];
+					r[regLo] = (int) src1;
+					r[regHi] = (int) (src1 >> 32);
+					finishLoad();
+					break;
+				case MULTU:
+					src1 = (r[b] & 0xFFFFFFFFL) * (r[c] & 0xFFFFFFFFL);
+					r[regLo] = (int) src1;
+					r[regHi] = (int) (src1 >> 32);
+					finishLoad();
+					break;
+				case DIV:
+				case DIVU:
+					src1 = r[b];
+					src2 = r[c];
+					if (code[i] == DIVU) {
+						src1 &= 0xFFFFFFFFL;
+						src2 &= 0xFFFFFFFFL;
+					}
+					divide(src1, src2);
+					finishLoad();
+					break;
+
+				case MFLO:
+					value = r[regLo];
+					finishLoad();
+					r[a] = value;
+					break;
+				case MFHI:
+					value = r[regHi];
+					finishLoad();
+					r[a] = value;
+					break;
+				case MTLO:
+					r[regLo] = r[b];
+					finishLoad();
+					break;
+				case MTHI:
+					r[regHi] = r[b];
+					finishLoad();
+					break;
+
+				case LB:
+					delayedLoad(a, readMem(r[b] + c, 1), 0xFFFFFFFF);
+					break;
+				case LH:
+					delayedLoad(a, readMem(r[b] + c, 2), 0xFFFFFFFF);
+					break;
+				case LW:
+					delayedLoad(a, readMem(r[b] + c, 4), 0xFFFFFFFF);
+					break;
+				case SB:
+					writeMem(r[b] + c, 1, r[a]);
+					finishLoad();
+					break;
+				case SH:
+					writeMem(r[b] + c, 2, r[a]);
+					finishLoad();
+					break;
+				case SW:
+					writeMem(r[b] + c, 4, r[a]);
+					finishLoad();
+					break;
+
+				case BEQ:
+					if (r[a] == r[b])
+						nextPC = r[regNextPC] + c;
+					finishLoad();
+					break;
+				case BNE:
+					if (r[a] != r[b])
+						nextPC = r[regNextPC] + c;
+					finishLoad();
+					break;
+				case BLEZ:
+					if (r[b] <= 0)
+						nextPC = r[regNextPC] + c;
+					finishLoad();
+					break;
+				case BGTZ:
+					if (r[b] > 0)
+						nextPC = r[regNextPC] + c;
+					finishLoad();
+					break;
+				case BLTZ:
+				case BLTZAL:
+					if (r[b] < 0)
+						nextPC = r[regNextPC] + c;
+					finishLoad();
+					if (code[i] == BLTZAL)
+						r[regRA] = r[regNextPC] + 4;
+					break;
+				case BGEZ:
+				case BGEZAL:
+					if (r[b] >= 0)
+						nextPC = r[regNextPC] + c;
+					finishLoad();
+					if (code[i] == BGEZAL)
+						r[regRA] = r[regNextPC] + 4;
+					break;
+				case J:
+				case JAL:
+					nextPC = (r[regNextPC] & 0xF0000000) | c;
+					finishLoad();
+					if (code[i] == JAL)
+						r[regRA] = r[regNextPC] + 4;
+					break;
+				case JR:
+				case JALR:
+					nextPC = r[b];
+					finishLoad();
+					if (code[i] == JALR)
+						r[a] = r[regNextPC] + 4;
+					break;
+
+				default:
+					Lib.assertNotReached();
+				}
+
+				advancePC(nextPC);
+
+				i += stride;
+				if (i == code.length)
+					return;
+
+				privilege.interrupt.tick(false);
+
+				if (Processor.this.epoch != startEpoch) {
+					inst.run();
+					return;
+				}
+			}
+		}
+
+		private int add(long src1, long src2) throws MipsException {
+			long dst = src1 + src2;
+			if ((int) dst != dst)
+				throw new MipsException(exceptionOverflow);
+
+			return (int) dst;
+		}
+
+		private void divide(long src1, long src2) throws MipsException {
+			// same order as the interpreter: lo and hi are set before the check
+			try {
+				registers[regLo] = (int) (src1 / src2);
+				registers[regHi] = (int) (src1 % src2);
+				if (registers[regLo] * src2 + registers[regHi] != src1)
+					throw new ArithmeticException();
+			}
+			catch (ArithmeticException e) {
+				throw new MipsException(exceptionOverflow);
+			}
+		}
+
+		/** The physical address of the first instruction. */
+		final int paddr;
+
+		/** The instructions this block was translated from. */
+		final int[] raw;
+
+		/**
+		 * The micro-operations, <tt>stride</tt> ints each: the operation and
+		 * three operands.
+		 */
+		final int[] code;
+
+		/** The value of the processor's epoch when last validated. */
+		int epoch;
+
+		static final int stride = 4;
+
+		// micro-operations
+		static final int NOP = 0, ADDU = 1, ADDIU = 2, ADD = 3, ADDI = 4,
+				SUBU = 5, SUB = 6, AND = 7, ANDI = 8, OR = 9, ORI = 10,
+				XOR = 11, XORI = 12, NOR = 13, LI = 14, SLT = 15, SLTI = 16,
+				SLTU = 17, SLTIU = 18, SLL = 19, SRA = 20, SLLV = 21,
+				SRAV = 22, MULT = 23, MULTU = 24, DIV = 25, DIVU = 26,
+				MFLO = 27, MFHI = 28, MTLO = 29, MTHI = 30, LB = 31, LH = 32,
+				LW = 33, SB = 34, SH = 35, SW = 36, BEQ = 37, BNE = 38,
+				BLEZ = 39, BGTZ = 40, BLTZ = 41, BGEZ = 42, BLTZAL = 43,
+				BGEZAL = 44, J = 45, JAL = 46, JR = 47, JALR = 48;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
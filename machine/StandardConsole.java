@@ -32,6 +32,11 @@ public class StandardConsole implements SerialConsole {
 			}
 		};
 
+		receiveEvent = privilege.interrupt.registerEvent("console read",
+				receiveInterrupt);
+		sendEvent = privilege.interrupt.registerEvent("console write",
+				sendInterrupt);
+
 		scheduleReceiveInterrupt();
 	}
 
@@ -42,8 +47,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				receiveInterrupt);
+		privilege.interrupt.scheduleEvent(Stats.ConsoleTime, receiveEvent);
 	}
 
 	/**
@@ -115,8 +119,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				sendInterrupt);
+		privilege.interrupt.scheduleEvent(Stats.ConsoleTime, sendEvent);
 	}
 
 	/**
@@ -154,6 +157,8 @@ public class StandardConsole implements SerialConsole {
 
 	private Runnable sendInterrupt;
 
+	private int receiveEvent, sendEvent;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
@@ -19,7 +19,7 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks + ", idle " + idleTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
@@ -45,6 +45,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time that Nachos skipped over because no
+	 * thread was ready to run.
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -0,0 +1,212 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A paging device: an array of page-sized slots that the kernel can transfer
+ * pages of main memory to and from, without going through a file system.
+ *
+ * <p>
+ * The slots are backed by a host file, which is mapped into memory a segment
+ * at a time as the kernel uses higher slot numbers, so the device can grow to
+ * many times the size of physical memory. Each transfer moves a run of
+ * consecutive slots. It costs one seek and half a rotation, plus a transfer
+ * time per page, and the device interrupts when it completes; only one
+ * transfer may be in progress at a time. Every page transferred counts as one
+ * disk read or write in the statistics.
+ */
+public final class SwapDevice {
+	/**
+	 * Allocate a new swap device.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param file the host file backing the device.
+	 */
+	public SwapDevice(Privilege privilege, File file) {
+		System.out.print(" swap");
+
+		this.privilege = privilege;
+		this.file = file;
+
+		transferInterrupt = new Runnable() {
+			public void run() {
+				transferInterrupt();
+			}
+		};
+
+		transferEvent = privilege.interrupt.registerEvent("swap",
+				transferInterrupt);
+	}
+
+	/**
+	 * Set this device's interrupt handler, which is called when a transfer
+	 * completes.
+	 *
+	 * @param handler the interrupt handler.
+	 */
+	public void setInterruptHandler(Runnable handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Start copying a run of slots into frames of main memory. The frames are
+	 * filled when the transfer completes.
+	 *
+	 * @param firstSlot the first slot to read.
+	 * @param ppns the frame to fill from each slot.
+	 * @param count the number of slots.
+	 */
+	public void read(int firstSlot, int[] ppns, int count) {
+		startTransfer(firstSlot, ppns, count, false);
+	}
+
+	/**
+	 * Start copying frames of main memory into a run of slots. The frames are
+	 * read when the transfer completes.
+	 *
+	 * @param firstSlot the first slot to write.
+	 * @param ppns the frame to copy into each slot.
+	 * @param count the number of slots.
+	 */
+	public void write(int firstSlot, int[] ppns, int count) {
+		startTransfer(firstSlot, ppns, count, true);
+	}
+
+	/**
+	 * Release the backing file and delete it. Any transfer in progress is
+	 * abandoned.
+	 */
+	public void close() {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					if (channel != null)
+						channel.close();
+				}
+				catch (IOException e) {
+				}
+
+				channel = null;
+				segments = new MappedByteBuffer[0];
+				file.delete();
+			}
+		});
+	}
+
+	private void startTransfer(int firstSlot, int[] ppns, int count,
+			boolean writing) {
+		Lib.assertTrue(!busy, "swap transfer already in progress");
+		Lib.assertTrue(firstSlot >= 0 && count > 0 && count <= ppns.length);
+
+		busy = true;
+		transferSlot = firstSlot;
+		transferFrames = Arrays.copyOf(ppns, count);
+		transferWriting = writing;
+
+		privilege.interrupt.scheduleEvent(Stats.SeekTime + Stats.RotationTime
+				/ 2 + count * pageTransferTime, transferEvent);
+	}
+
+	private void transferInterrupt() {
+		Lib.assertTrue(busy);
+
+		final byte[] memory = Machine.processor().getMemory();
+		final int pageSize = Processor.pageSize;
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				for (int i = 0; i < transferFrames.length; i++) {
+					MappedByteBuffer segment = getSegment((transferSlot + i)
+							/ segmentSlots);
+					segment.position(((transferSlot + i) % segmentSlots)
+							* pageSize);
+
+					if (transferWriting)
+						segment.put(memory, transferFrames[i] * pageSize,
+								pageSize);
+					else
+						segment.get(memory, transferFrames[i] * pageSize,
+								pageSize);
+				}
+			}
+		});
+
+		if (transferWriting)
+			privilege.stats.numDiskWrites += transferFrames.length;
+		else
+			privilege.stats.numDiskReads += transferFrames.length;
+
+		busy = false;
+		transferFrames = null;
+
+		if (handler != null)
+			handler.run();
+	}
+
+	/**
+	 * Return the mapping of a segment of the backing file, mapping it, and
+	 * creating the file, if this is the first time the segment is used.
+	 */
+	private MappedByteBuffer getSegment(int segment) {
+		if (segment < segments.length && segments[segment] != null)
+			return segments[segment];
+
+		try {
+			if (channel == null) {
+				channel = new RandomAccessFile(file, "rw").getChannel();
+				file.deleteOnExit();
+			}
+
+			if (segment >= segments.length)
+				segments = Arrays.copyOf(segments, Math.max(segment + 1,
+						2 * segments.length));
+
+			long size = (long) segmentSlots * Processor.pageSize;
+			segments[segment] = channel.map(FileChannel.MapMode.READ_WRITE,
+					segment * size, size);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("cannot map swap file " + file + ": " + e);
+		}
+
+		return segments[segment];
+	}
+
+	private Privilege privilege;
+
+	private File file;
+
+	private FileChannel channel = null;
+
+	/** The mapped segments of the backing file. */
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	private Runnable handler = null;
+
+	private Runnable transferInterrupt;
+
+	private int transferEvent;
+
+	private boolean busy = false;
+
+	private int transferSlot;
+
+	private int[] transferFrames;
+
+	private boolean transferWriting;
+
+	/** The number of slots mapped at a time. */
+	private static final int segmentSlots = 256;
+
+	/** The time to transfer one page, once the head is in position. */
+	private static final int pageTransferTime = Stats.RotationTime / 8;
+}
@@ -5,7 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -39,6 +41,22 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+		handoff = Config.getBoolean("TCB.handoff", handoff);
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+		poolSize = Config.getInteger("TCB.poolSize", poolSize);
+		Lib.assertTrue(maxThreads > 0 && stackSize >= 0 && poolSize >= 0);
+	}
+
+	/**
+	 * Return the maximum number of started, non-destroyed TCBs that can be in
+	 * existence, set by the <tt>TCB.maxThreads</tt> key.
+	 * 
+	 * @return the maximum number of TCBs.
+	 */
+	public static int getMaxThreads() {
+		return maxThreads;
 	}
 
 	/**
@@ -91,31 +109,40 @@ public final class TCB {
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, we need a Java thread to run it.
+			 * Reuse a parked carrier thread left over from a destroyed TCB if
+			 * there is one; otherwise we have to make a new Java thread.
+			 * Creating Java threads is a privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
-
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			final Carrier carrier = Carrier.takeIdle();
+
+			if (carrier == null) {
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						Carrier created = new Carrier(TCB.this);
+						javaThread = created.thread;
+					}
+				});
+			}
+			else {
+				javaThread = carrier.thread;
+			}
 
 			/*
-			 * The Java thread hasn't yet started, but we need to get it
+			 * The Java thread isn't yet running this TCB, but we need to get it
 			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * current TCB, starting the new Java thread (or handing this TCB
+			 * to the parked one), and waiting for it to wake us up from
+			 * threadroot(). Once the new TCB wakes us up, it's safe to context
+			 * switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			if (carrier == null)
+				this.javaThread.start();
+			else
+				carrier.assign(this);
+
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -297,8 +324,24 @@ public final class TCB {
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * In handoff mode the monitor is not used at all: the thread parks until
+	 * <tt>interrupt()</tt> unparks it. A permit left by an early
+	 * <tt>unpark()</tt> makes the next <tt>park()</tt> return at once, and
+	 * spurious wakeups just recheck the flag, so no wakeup can be lost.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (handoff) {
+			while (!running)
+				LockSupport.park(this);
+		}
+		else {
+			waitOnMonitor();
+		}
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -314,7 +357,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (handoff) {
+			running = true;
+			LockSupport.unpark(javaThread);
+		}
+		else {
+			notifyMonitor();
+		}
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -344,7 +397,22 @@ public final class TCB {
 	 * The maximum number of started, non-destroyed TCB's that can be in
 	 * existence.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads = 250;
+
+	/**
+	 * <tt>true</tt> to hand the CPU from one TCB to the next with
+	 * <tt>LockSupport.park()</tt> and <tt>unpark()</tt>, instead of
+	 * <tt>wait()</tt> and <tt>notify()</tt> on each TCB's monitor. Set by the
+	 * <tt>TCB.handoff</tt> key.
+	 */
+	private static boolean handoff = true;
+
+	/**
+	 * The stack size, in bytes, to request for each new Java thread, or 0 for
+	 * the JVM's default. Set by the <tt>TCB.stackSize</tt> key; a small stack
+	 * lets many more TCBs exist at once.
+	 */
+	private static int stackSize = 0;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -403,7 +471,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,7 +486,101 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * The maximum number of idle carrier threads kept parked for reuse by
+	 * <tt>start()</tt>, set by the <tt>TCB.poolSize</tt> key. 0 disables
+	 * reuse, so every TCB gets a fresh Java thread.
+	 */
+	private static int poolSize = 16;
+
+	/**
+	 * A Java thread that runs TCBs one after another. When the TCB it is
+	 * running is destroyed, and <tt>threadroot()</tt> has finished unwinding
+	 * it, the carrier parks in the idle pool until <tt>start()</tt> hands it
+	 * another TCB, instead of exiting.
+	 * 
+	 * <p>
+	 * Which carrier runs a TCB has no effect on Nachos, since only one TCB
+	 * runs at a time; a carrier that has not made it back to the pool yet is
+	 * simply not reused.
+	 */
+	private static class Carrier implements Runnable {
+		Carrier(TCB first) {
+			tcb = first;
+
+			if (stackSize > 0)
+				thread = new Thread(null, this, "TCB", stackSize);
+			else
+				thread = new Thread(this);
+		}
+
+		public void run() {
+			while (tcb != null) {
+				tcb.threadroot();
+				tcb = awaitNext();
+			}
+		}
+
+		/**
+		 * Remove and return a carrier from the idle pool.
+		 * 
+		 * @return an idle carrier, or <tt>null</tt> if the pool is empty.
+		 */
+		static Carrier takeIdle() {
+			synchronized (idle) {
+				return idle.isEmpty() ? null : idle.removeFirst();
+			}
+		}
+
+		/**
+		 * Hand a TCB to this carrier, which must have been taken from the
+		 * idle pool.
+		 */
+		synchronized void assign(TCB next) {
+			this.next = next;
+			notify();
+		}
+
+		/**
+		 * Join the idle pool and wait for the next TCB to run.
+		 * 
+		 * @return the next TCB, or <tt>null</tt> if the pool is full and this
+		 * carrier should exit instead.
+		 */
+		private TCB awaitNext() {
+			synchronized (idle) {
+				if (idle.size() >= poolSize)
+					return null;
+
+				idle.add(this);
+			}
+
+			synchronized (this) {
+				while (next == null) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+					}
+				}
+
+				TCB result = next;
+				next = null;
+				return result;
+			}
+		}
+
+		final Thread thread;
+
+		/** The TCB this carrier is running. */
+		private TCB tcb;
+
+		/** The TCB handed over by <tt>assign()</tt>, not yet picked up. */
+		private TCB next = null;
+
+		/** The parked carriers, ready to be reused. */
+		private static final LinkedList<Carrier> idle = new LinkedList<Carrier>();
+	}
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
@@ -38,6 +38,11 @@ public final class Timer {
 			}
 		};
 
+		timerEvent = privilege.interrupt.registerEvent("timer",
+				timerInterrupt);
+		autoGraderEvent = privilege.interrupt.registerEvent("timerAG",
+				autoGraderInterrupt);
+
 		scheduleInterrupt();
 	}
 
@@ -74,11 +79,11 @@ public final class Timer {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
 
-		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		privilege.interrupt.scheduleEvent(delay, timerEvent);
 	}
 
 	private void scheduleAutoGraderInterrupt() {
-		privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+		privilege.interrupt.scheduleEvent(1, autoGraderEvent);
 	}
 
 	private long lastTimerInterrupt;
@@ -87,6 +92,8 @@ public final class Timer {
 
 	private Runnable autoGraderInterrupt;
 
+	private int timerEvent, autoGraderEvent;
+
 	private Privilege privilege;
 
 	private Runnable handler = null;
@@ -149,6 +149,25 @@ public abstract class Privilege {
 		 */
 		public void schedule(long when, String type, Runnable handler);
 
+		/**
+		 * Register an interrupt that a device will schedule over and over.
+		 * Scheduling a registered interrupt creates no garbage.
+		 * 
+		 * @param type a name for the type of interrupt.
+		 * @param handler the interrupt handler to call.
+		 * @return a number identifying the interrupt, for
+		 * <tt>scheduleEvent()</tt>.
+		 */
+		public int registerEvent(String type, Runnable handler);
+
+		/**
+		 * Schedule a registered interrupt to occur at some time in the future.
+		 * 
+		 * @param when the number of ticks until the interrupt should occur.
+		 * @param event the number returned by <tt>registerEvent()</tt>.
+		 */
+		public void scheduleEvent(long when, int event);
+
 		/**
 		 * Advance the simulated time.
 		 * 
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
-import java.util.Iterator;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
@@ -14,13 +10,12 @@ public class Alarm {
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
-	 * 
+	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-		list = new LinkedList<SleepingThread>();
-		lock = new Lock();
+		wheel = new TimingWheel(Machine.timer().getTime());
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -30,65 +25,111 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes up every
+	 * sleeping thread whose time has come, tells the scheduler that the
+	 * current thread's quantum has expired, then causes the current thread to
+	 * yield, forcing a context switch if there is another thread that should
+	 * be run.
 	 */
 	public void timerInterrupt() {
-
 		boolean intStatus = Machine.interrupt().disable();
 
-		long currentTime = Machine.timer().getTime();
-		Iterator<SleepingThread> it = list.iterator();
+		TimingWheel.Timer timer = wheel.advance(Machine.timer().getTime());
+		while (timer != null) {
+			TimingWheel.Timer next = TimingWheel.next(timer);
+			((Sleeper) timer).thread.ready();
+			timer = next;
+		}
 
-		while(it.hasNext()){  
-	        SleepingThread st = it.next();  
-			if (st.wakeTime <= currentTime){ 
-				st.thread.ready();
-				it.remove();
-			}
-     	}
+		ThreadedKernel.scheduler.timerInterrupt();
 
-     	Machine.interrupt().restore(intStatus);
+		Machine.interrupt().restore(intStatus);
 		KThread.yield();
-		
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
 	 * the scheduler ready set) during the first timer interrupt where
-	 * 
+	 *
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
-	 * 
+	 *
 	 * @param x the minimum number of clock ticks to wait.
-	 * 
+	 *
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		long wakeTime = Machine.timer().getTime() + x;
-		lock.acquire();
-		SleepingThread st = new SleepingThread(KThread.currentThread(), wakeTime);
-		list.add(st);
-		lock.release();
+		sleep(x, false);
+	}
+
+	/**
+	 * Like <tt>waitUntil()</tt>, but another thread may end the wait early by
+	 * calling <tt>cancel()</tt>.
+	 *
+	 * @param x the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the wait was cancelled, <tt>false</tt> if the
+	 * time ran out.
+	 */
+	public boolean waitUntilCancelable(long x) {
+		return sleep(x, true);
+	}
+
+	/**
+	 * Wake up a thread that is sleeping in <tt>waitUntilCancelable()</tt>
+	 * before its time runs out.
+	 *
+	 * @param thread the thread to wake up.
+	 * @return <tt>true</tt> if the thread was sleeping and has been woken up.
+	 */
+	public boolean cancel(KThread thread) {
 		boolean intStatus = Machine.interrupt().disable();
+
+		Sleeper sleeper = thread.sleeper;
+		boolean canceled = sleeper != null && sleeper.cancelable
+				&& wheel.remove(sleeper);
+
+		if (canceled) {
+			sleeper.canceled = true;
+			thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return canceled;
+	}
+
+	private boolean sleep(long x, boolean cancelable) {
+		KThread thread = KThread.currentThread();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// each thread reuses the same timer for every sleep
+		if (thread.sleeper == null)
+			thread.sleeper = new Sleeper(thread);
+
+		Sleeper sleeper = thread.sleeper;
+		sleeper.cancelable = cancelable;
+		sleeper.canceled = false;
+		wheel.add(sleeper, Machine.timer().getTime() + x);
+
 		KThread.sleep();
+
 		Machine.interrupt().restore(intStatus);
-		//while (wakeTime > Machine.timer().getTime())
-		//	KThread.yield();
+		return sleeper.canceled;
 	}
-	
-	private static class SleepingThread {
-		KThread thread;
-		long wakeTime;
-		public SleepingThread(KThread kt, long wt){
-			this.thread = kt;
-			this.wakeTime = wt;
+
+	/**
+	 * A sleeping thread's entry in the timing wheel.
+	 */
+	static class Sleeper extends TimingWheel.Timer {
+		Sleeper(KThread thread) {
+			this.thread = thread;
 		}
+
+		KThread thread;
+
+		boolean cancelable, canceled;
 	}
-	LinkedList<SleepingThread> list;
-	private Lock lock;
-	
+
+	private TimingWheel wheel;
 }
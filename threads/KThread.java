@@ -302,14 +302,33 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * While the ready set is empty, nothing can happen until the next
+	 * interrupt, so the idle thread fast-forwards simulated time to it instead
+	 * of yielding over and over.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
-					yield();
+				while (true) {
+					boolean intStatus = Machine.interrupt().disable();
+
+					KThread nextThread = readyQueue.nextThread();
+					if (nextThread == null) {
+						Machine.interrupt().idle();
+						nextThread = readyQueue.nextThread();
+					}
+
+					if (nextThread != null) {
+						currentThread.ready();
+						nextThread.run();
+					}
+
+					Machine.interrupt().restore(intStatus);
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -428,6 +447,35 @@ public class KThread {
 
 	}
 
+	/**
+	 * Measure how fast threads can be switched: two threads take turns calling
+	 * <tt>yield()</tt>, and the number of context switches per second of host
+	 * time is printed. Run with <tt>TCB.handoff</tt> on and off to compare the
+	 * two ways <tt>TCB</tt> can hand off the CPU.
+	 */
+	public static void switchBenchmark() {
+		final int rounds = 50000;
+
+		KThread ponger = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < rounds; i++)
+					KThread.yield();
+			}
+		}).setName("ponger");
+
+		long start = System.nanoTime();
+
+		ponger.fork();
+		for (int i = 0; i < rounds; i++)
+			KThread.yield();
+		ponger.join();
+
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("KThread.switchBenchmark: " + 2L * rounds
+				* 1000000000L / elapsed + " switches/sec");
+	}
+
 	private static final char dbgThread = 't';
 
 	/**
@@ -437,6 +485,12 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * This thread's entry in the alarm's timing wheel, allocated the first
+	 * time it sleeps and reused after that.
+	 */
+	Alarm.Sleeper sleeper = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -2,31 +2,30 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends TicketScheduler {
 	/**
 	 * Allocate a new lottery scheduler.
 	 */
@@ -35,13 +34,307 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
 	}
+
+	/**
+	 * Test ticket transfer on a private scheduler, then hold lotteries among
+	 * ten threads, checking that their shares of the wins match their
+	 * shares of the tickets.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryScheduler s = new LotteryScheduler();
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+
+		// a holds lock1, b holds lock2 and waits for lock1, c waits for lock2
+		ThreadQueue lock1 = s.newThreadQueue(true);
+		ThreadQueue lock2 = s.newThreadQueue(true);
+		s.setPriority(a, 2);
+		s.setPriority(b, 3);
+		s.setPriority(c, 5);
+		lock1.acquire(a);
+		lock2.acquire(b);
+		lock1.waitForAccess(b);
+		lock2.waitForAccess(c);
+		Lib.assertTrue(s.getEffectivePriority(a) == 10
+				&& s.getEffectivePriority(b) == 8);
+
+		s.setPriority(c, 1000);
+		Lib.assertTrue(s.getEffectivePriority(a) == 1005);
+
+		// releasing lock1 hands it to b, and a loses everything b donated
+		Lib.assertTrue(lock1.nextThread() == b);
+		Lib.assertTrue(s.getEffectivePriority(a) == 2
+				&& s.getEffectivePriority(b) == 1003);
+		Lib.assertTrue(lock2.nextThread() == c);
+		Lib.assertTrue(s.getEffectivePriority(b) == 3);
+		lock1.nextThread();
+		lock2.nextThread();
+
+		lotteries(s, 10, 20000, 0.25);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Time lotteries held among thousands of threads.
+	 */
+	public static void benchmark() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		final int numThreads = 4000, draws = 2000000;
+		long elapsed = lotteries(new LotteryScheduler(), numThreads, draws,
+				0.05);
+
+		System.out.println("LotteryScheduler: " + elapsed / draws
+				+ " ns per draw among " + numThreads + " threads");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Give thread <i>i</i> <i>i</i>+1 tickets, hold <tt>draws</tt> lotteries
+	 * among them, and check that each tenth of the threads wins its share of
+	 * the tickets to within <tt>tolerance</tt>.
+	 *
+	 * @return the time the draws took, in nanoseconds.
+	 */
+	private static long lotteries(LotteryScheduler s, int numThreads,
+			int draws, double tolerance) {
+		ThreadQueue queue = s.newThreadQueue(false);
+		KThread[] threads = new KThread[numThreads];
+		long totalTickets = 0;
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread().setName("lottery" + i);
+			s.setPriority(threads[i], i + 1);
+			totalTickets += i + 1;
+			queue.waitForAccess(threads[i]);
+		}
+
+		KThread[] winners = new KThread[draws];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < draws; i++) {
+			winners[i] = queue.nextThread();
+			queue.waitForAccess(winners[i]);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		IdentityHashMap<KThread, Integer> index =
+				new IdentityHashMap<KThread, Integer>();
+		for (int i = 0; i < numThreads; i++)
+			index.put(threads[i], i);
+
+		long[] wins = new long[numThreads];
+		for (int i = 0; i < draws; i++)
+			wins[index.get(winners[i])]++;
+
+		for (int group = 0; group < 10; group++) {
+			long groupWins = 0, groupTickets = 0;
+			for (int i = group * numThreads / 10; i < (group + 1) * numThreads
+					/ 10; i++) {
+				groupWins += wins[i];
+				groupTickets += i + 1;
+			}
+
+			double expected = (double) draws * groupTickets / totalTickets;
+			Lib.assertTrue(Math.abs(groupWins - expected) / expected
+					< tolerance);
+		}
+
+		return elapsed;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 *
+	 * <p>
+	 * Each waiting thread occupies a slot in a Fenwick tree of effective ticket
+	 * counts. Drawing the winner is a single descent of the tree, and adding a
+	 * thread, removing one, or changing its tickets updates O(log n) prefix
+	 * sums. Slots freed by departing threads are reused, so the tree only grows
+	 * to the largest number of threads that ever waited at once.
+	 */
+	protected class LotteryQueue extends TicketQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads.
+		 *
+		 * @return the thread holding the winning ticket, or <tt>null</tt> if
+		 * no thread is waiting.
+		 */
+		protected LotteryState pickNextThread() {
+			if (total == 0)
+				return null;
+
+			long ticket;
+			if (total <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) total);
+			else
+				ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			// find the first slot whose prefix sum exceeds the ticket
+			int pos = 0;
+			for (int step = slots.length; step > 0; step >>= 1) {
+				if (pos + step <= slots.length && tree[pos + step] <= ticket) {
+					pos += step;
+					ticket -= tree[pos];
+				}
+			}
+
+			return slots[pos];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < used; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + "(" + weights[i] + ") ");
+			}
+		}
+
+		/**
+		 * Give a thread a slot in the tree, holding its effective tickets.
+		 *
+		 * @param ticketState the thread to add.
+		 */
+		protected void add(TicketState ticketState) {
+			LotteryState state = (LotteryState) ticketState;
+
+			int slot;
+			if (numFree > 0) {
+				slot = freeSlots[--numFree];
+			}
+			else {
+				if (used == slots.length)
+					grow();
+				slot = used++;
+			}
+
+			slots[slot] = state;
+			state.slot = slot;
+			change(slot, state.getEffectiveTickets());
+		}
+
+		/**
+		 * Take a thread out of the tree, freeing its slot.
+		 *
+		 * @param ticketState the thread to remove.
+		 */
+		protected void remove(TicketState ticketState) {
+			LotteryState state = (LotteryState) ticketState;
+			int slot = state.slot;
+
+			change(slot, -weights[slot]);
+			slots[slot] = null;
+			state.slot = -1;
+			freeSlots[numFree++] = slot;
+		}
+
+		protected void ticketsChanged(TicketState state, long oldTickets) {
+			change(((LotteryState) state).slot, state.getEffectiveTickets()
+					- oldTickets);
+		}
+
+		/**
+		 * Add to the tickets held in one slot, and pass the change on to the
+		 * owner if tickets are transferred.
+		 *
+		 * @param slot the slot to change.
+		 * @param delta the number of tickets to add.
+		 */
+		private void change(int slot, long delta) {
+			weights[slot] += delta;
+
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+
+			changeTotal(delta);
+		}
+
+		/**
+		 * Double the number of slots. The capacity stays a power of two so
+		 * that <tt>pickNextThread()</tt> can descend the tree bit by bit.
+		 */
+		private void grow() {
+			int capacity = Math.max(initialCapacity, slots.length * 2);
+
+			slots = Arrays.copyOf(slots, capacity);
+			weights = Arrays.copyOf(weights, capacity);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += weights[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/** The waiting thread in each slot, or <tt>null</tt> if it is free. */
+		private LotteryState[] slots = new LotteryState[0];
+
+		/** The effective tickets held by each slot. */
+		private long[] weights = new long[0];
+
+		/** The Fenwick tree over <tt>weights</tt>, indexed from 1. */
+		private long[] tree = new long[1];
+
+		/** The number of slots that have ever been handed out. */
+		private int used = 0;
+
+		/** A stack of slots below <tt>used</tt> that are free again. */
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a lottery scheduler: its ticket
+	 * state, and its slot in the queue it's waiting on.
+	 */
+	protected class LotteryState extends TicketState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			super(thread);
+		}
+
+		/** The slot of this thread in the queue it's waiting on. */
+		private int slot = -1;
+	}
+
+	private static final int initialCapacity = 16;
 }
@@ -0,0 +1,322 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread sits at one of several levels, and the next thread to be
+ * dequeued always comes from the highest non-empty level (level 0), in FIFO
+ * order within that level. New threads start at level 0. A thread that keeps
+ * getting preempted by the timer uses up its allotment of quanta and is
+ * demoted one level; each level down allows twice as many quanta. A thread
+ * that blocked, on I/O or a synchronization primitive, is promoted one level
+ * when it is woken up. Every <tt>MLFQScheduler.boostInterval</tt> ticks, all
+ * threads are moved back to level 0, so that CPU-bound threads cannot be
+ * starved forever.
+ *
+ * <p>
+ * This scheduler has no notion of priority donation; the
+ * <tt>transferPriority</tt> flag of its queues is ignored.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				100 * Stats.TimerTicks);
+
+		Lib.assertTrue(numLevels >= 1 && numLevels <= 32);
+		Lib.assertTrue(boostInterval > 0);
+
+		slices = new long[numLevels];
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new thread queue that dequeues threads by level.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new LevelQueue();
+	}
+
+	/**
+	 * Return the priority of a thread, which is higher for higher levels:
+	 * <tt>numLevels - 1</tt> at level 0, down to 0 at the lowest level.
+	 *
+	 * @param thread the thread whose priority to return.
+	 * @return the priority of the thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Charge the current thread one quantum at its level, demoting it if it
+	 * has used its whole allotment, and boost every thread if it is time.
+	 */
+	public void timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+		if (time >= nextBoost) {
+			boostEpoch++;
+			numBoosts++;
+			nextBoost = time + boostInterval;
+			Lib.debug(dbgMLFQ, "Boosting all threads to level 0");
+		}
+
+		// the idle thread is never queued, so it has no state of its own
+		Object state = KThread.currentThread().schedulingState;
+		if (state == null)
+			return;
+
+		((ThreadState) state).quantumExpired();
+	}
+
+	/**
+	 * Print how many quanta threads spent at each level, and how often
+	 * threads changed level.
+	 */
+	public void print() {
+		System.out.print("MLFQ: quanta per level");
+		for (int level = 0; level < numLevels; level++)
+			System.out.print(" " + slices[level]);
+		System.out.println(", demotions " + numDemotions + ", promotions "
+				+ numPromotions + ", boosts " + numBoosts);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 *
+	 * <p>
+	 * The lists are linked through the <tt>ThreadState</tt> objects, and a
+	 * bitmap records which of them are non-empty, so the next thread is found
+	 * with a single bit scan. A boost splices all the lists onto level 0 in
+	 * level order; each queue does this lazily, the next time it is used.
+	 */
+	protected class LevelQueue extends ThreadQueue {
+		LevelQueue() {
+			heads = new ThreadState[numLevels];
+			tails = new ThreadState[numLevels];
+		}
+
+		/**
+		 * Add a thread to the list for its level. If the thread is not the
+		 * current thread, it is being woken up after blocking, and is promoted
+		 * first.
+		 *
+		 * @param thread the thread to add.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (thread != KThread.currentThread())
+				state.wokenUp();
+
+			refresh();
+
+			int level = state.getLevel();
+			state.next = null;
+			if (tails[level] == null)
+				heads[level] = state;
+			else
+				tails[level].next = state;
+			tails[level] = state;
+
+			nonEmpty |= 1 << level;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			refresh();
+
+			if (nonEmpty == 0)
+				return null;
+
+			int level = Integer.numberOfTrailingZeros(nonEmpty);
+			ThreadState state = heads[level];
+
+			heads[level] = state.next;
+			if (heads[level] == null) {
+				tails[level] = null;
+				nonEmpty &= ~(1 << level);
+			}
+			state.next = null;
+
+			return state.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			getThreadState(thread);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			refresh();
+
+			for (int level = 0; level < numLevels; level++) {
+				for (ThreadState s = heads[level]; s != null; s = s.next)
+					System.out.print(s.thread + "(" + level + ") ");
+			}
+		}
+
+		/**
+		 * If there has been a boost since this queue was last used, move every
+		 * waiting thread to level 0, keeping higher levels ahead of lower ones.
+		 */
+		private void refresh() {
+			if (epoch == boostEpoch)
+				return;
+
+			epoch = boostEpoch;
+
+			for (int level = 1; level < numLevels; level++) {
+				if (heads[level] == null)
+					continue;
+
+				if (tails[0] == null)
+					heads[0] = heads[level];
+				else
+					tails[0].next = heads[level];
+				tails[0] = tails[level];
+
+				heads[level] = tails[level] = null;
+			}
+
+			nonEmpty = (heads[0] == null) ? 0 : 1;
+		}
+
+		private ThreadState[] heads, tails;
+
+		/** Bit <i>l</i> is set if some thread is waiting at level <i>l</i>. */
+		private int nonEmpty = 0;
+
+		/** The value of <tt>boostEpoch</tt> when this queue was last used. */
+		private int epoch = boostEpoch;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how many quanta it has
+	 * used there.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread. The thread starts at level 0.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Return the current level of the associated thread.
+		 *
+		 * @return the level of the associated thread.
+		 */
+		public int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				quantaUsed = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Called when the timer preempts the associated thread.
+		 */
+		void quantumExpired() {
+			int level = getLevel();
+
+			slices[level]++;
+
+			if (++quantaUsed >= 1 << level && level < numLevels - 1) {
+				this.level = level + 1;
+				quantaUsed = 0;
+				numDemotions++;
+				Lib.debug(dbgMLFQ, "Demoting " + thread + " to level "
+						+ this.level);
+			}
+		}
+
+		/**
+		 * Called when the associated thread is made ready by another thread,
+		 * which means it blocked before using up its allotment.
+		 */
+		void wokenUp() {
+			int level = getLevel();
+			quantaUsed = 0;
+
+			if (level > 0) {
+				this.level = level - 1;
+				numPromotions++;
+				Lib.debug(dbgMLFQ, "Promoting " + thread + " to level "
+						+ this.level);
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		private int level = 0;
+
+		/** The number of quanta used at <tt>level</tt>. */
+		private int quantaUsed = 0;
+
+		/** The value of <tt>boostEpoch</tt> when <tt>level</tt> was set. */
+		private int epoch = boostEpoch;
+
+		/** The next thread in the same list of a <tt>LevelQueue</tt>. */
+		private ThreadState next = null;
+	}
+
+	private int numLevels;
+
+	private long boostInterval;
+
+	private long nextBoost;
+
+	/** Counts boosts; states and queues compare it to notice a new one. */
+	private int boostEpoch = 0;
+
+	/** The number of quanta that ended at each level. */
+	private long[] slices;
+
+	private long numDemotions = 0, numPromotions = 0, numBoosts = 0;
+
+	private static final char dbgMLFQ = 'q';
+}
@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -97,6 +96,132 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test priority ordering and donation on a private scheduler.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler s = new PriorityScheduler();
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		KThread d = new KThread().setName("d");
+
+		// highest priority first, then first come first served
+		ThreadQueue ready = s.newThreadQueue(false);
+		s.setPriority(c, 5);
+		ready.waitForAccess(a);
+		ready.waitForAccess(b);
+		ready.waitForAccess(c);
+		Lib.assertTrue(ready.nextThread() == c);
+		Lib.assertTrue(ready.nextThread() == a);
+		Lib.assertTrue(ready.nextThread() == b);
+		Lib.assertTrue(ready.nextThread() == null);
+
+		// a holds lock1, b holds lock2 and waits for lock1, c waits for lock2
+		ThreadQueue lock1 = s.newThreadQueue(true);
+		ThreadQueue lock2 = s.newThreadQueue(true);
+		lock1.acquire(a);
+		lock2.acquire(b);
+		lock1.waitForAccess(b);
+		lock2.waitForAccess(c);
+		Lib.assertTrue(s.getEffectivePriority(a) == 5
+				&& s.getEffectivePriority(b) == 5);
+
+		// donation follows changes to the donor's own priority
+		s.setPriority(c, 7);
+		Lib.assertTrue(s.getEffectivePriority(a) == 7);
+		s.setPriority(c, 2);
+		Lib.assertTrue(s.getEffectivePriority(a) == 2);
+
+		// a waiter whose effective priority rises moves ahead in its queue
+		ready.waitForAccess(d);
+		ready.waitForAccess(a);
+		s.setPriority(c, 6);
+		Lib.assertTrue(ready.nextThread() == a);
+		Lib.assertTrue(ready.nextThread() == d);
+
+		// releasing lock1 hands it to b, and a loses the donation
+		Lib.assertTrue(lock1.nextThread() == b);
+		Lib.assertTrue(s.getEffectivePriority(a) == priorityDefault
+				&& s.getEffectivePriority(b) == 6);
+		Lib.assertTrue(lock2.nextThread() == c);
+		Lib.assertTrue(s.getEffectivePriority(b) == priorityDefault);
+		lock1.nextThread();
+		lock2.nextThread();
+
+		// threads moved between priorities keep their order of arrival
+		KThread[] order = new KThread[64];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = new KThread().setName("order" + i);
+			ready.waitForAccess(order[i]);
+		}
+		for (int i = order.length - 1; i >= 0; i -= 3) {
+			s.setPriority(order[i], 3);
+			s.setPriority(order[i], priorityDefault);
+		}
+		for (int i = 0; i < order.length; i++)
+			Lib.assertTrue(ready.nextThread() == order[i]);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Time thousands of threads contending on a chain of locks that transfer
+	 * priority. Each holder waits for the next lock in the chain, so every
+	 * waiter arrival or departure may change the whole chain.
+	 */
+	public static void benchmark() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler s = new PriorityScheduler();
+		final int numLocks = 16, numWaiters = 4000, rounds = 50;
+		Random random = new Random(0);
+
+		KThread[] holders = new KThread[numLocks];
+		ThreadQueue[] locks = new ThreadQueue[numLocks];
+		for (int i = 0; i < numLocks; i++) {
+			holders[i] = new KThread().setName("holder" + i);
+			locks[i] = s.newThreadQueue(true);
+			locks[i].acquire(holders[i]);
+			if (i > 0) {
+				ThreadQueue link = s.newThreadQueue(true);
+				link.acquire(holders[i]);
+				link.waitForAccess(holders[i - 1]);
+			}
+		}
+
+		KThread[] waiters = new KThread[numWaiters];
+		for (int i = 0; i < numWaiters; i++) {
+			waiters[i] = new KThread().setName("waiter" + i);
+			s.setPriority(waiters[i], random.nextInt(priorityMaximum + 1));
+		}
+
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < numWaiters; i++)
+				locks[i % numLocks].waitForAccess(waiters[i]);
+
+			for (int i = 0; i < numWaiters; i++) {
+				KThread next = locks[i % numLocks].nextThread();
+				locks[i % numLocks].acquire(holders[i % numLocks]);
+				Lib.assertTrue(next != null);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		for (int i = 0; i < numLocks; i++)
+			Lib.assertTrue(s.getEffectivePriority(holders[i])
+					== priorityDefault);
+
+		System.out.println("PriorityScheduler: " + elapsed
+				/ (2L * rounds * numWaiters) + " ns per wait/wakeup with "
+				+ numWaiters + " waiters on " + numLocks + " chained locks");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -125,8 +250,26 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+	/**
+	 * Return the highest priority whose bit is set in a mask of priorities.
+	 * 
+	 * @param mask a bitmap with bit <i>p</i> set for each priority <i>p</i>.
+	 * @return the highest priority in <tt>mask</tt>, or -1 if it is empty.
+	 */
+	private static int highestPriority(int mask) {
+		return 31 - Integer.numberOfLeadingZeros(mask);
+	}
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one heap per effective priority, ordered by
+	 * when they started waiting, and a bitmap records which of the heaps are
+	 * non-empty. Finding the next thread is then a single bit scan, no matter
+	 * how many threads are waiting, and adding a thread, or moving one whose
+	 * effective priority changed, takes time logarithmic in the number of
+	 * threads at its priority.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +288,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.waitingOn = null;
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +309,155 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (nonEmpty == 0)
+				return null;
+
+			return heaps[highestPriority(nonEmpty)][0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+				for (int i = 0; i < sizes[p]; i++)
+					System.out.print(heaps[p][i].thread + "(" + p + ") ");
+			}
+		}
+
+		/**
+		 * Add a thread to the heap for its effective priority. It is placed
+		 * by <tt>waitSequence</tt>, so it goes behind every thread that
+		 * started waiting before it did, even when it is moved here because
+		 * its effective priority changed.
+		 * 
+		 * @param state the thread to add.
+		 */
+		private void add(ThreadState state) {
+			int p = state.effectivePriority;
+
+			if (heaps[p] == null)
+				heaps[p] = new ThreadState[4];
+			else if (sizes[p] == heaps[p].length)
+				heaps[p] = Arrays.copyOf(heaps[p], 2 * sizes[p]);
+
+			int i = sizes[p]++;
+			heaps[p][i] = state;
+			state.heapIndex = i;
+			siftUp(heaps[p], i);
+
+			nonEmpty |= 1 << p;
+		}
+
+		/**
+		 * Remove a thread from the heap for its effective priority.
+		 * 
+		 * @param state the thread to remove.
+		 */
+		private void remove(ThreadState state) {
+			int p = state.effectivePriority;
+			ThreadState[] heap = heaps[p];
+			int i = state.heapIndex;
+
+			Lib.assertTrue(heap[i] == state);
+
+			ThreadState last = heap[--sizes[p]];
+			heap[sizes[p]] = null;
+			state.heapIndex = -1;
+
+			if (last != state) {
+				heap[i] = last;
+				last.heapIndex = i;
+				siftDown(heap, sizes[p], i);
+				siftUp(heap, last.heapIndex);
+			}
+
+			if (sizes[p] == 0)
+				nonEmpty &= ~(1 << p);
+		}
+
+		/**
+		 * Move the thread at index <i>i</i> of a heap up past every thread
+		 * that started waiting after it did.
+		 */
+		private void siftUp(ThreadState[] heap, int i) {
+			ThreadState state = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (heap[parent].waitSequence < state.waitSequence)
+					break;
+
+				heap[i] = heap[parent];
+				heap[i].heapIndex = i;
+				i = parent;
+			}
+
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		/**
+		 * Move the thread at index <i>i</i> of a heap of <i>size</i> threads
+		 * down past every thread that started waiting before it did.
+		 */
+		private void siftDown(ThreadState[] heap, int size, int i) {
+			ThreadState state = heap[i];
+
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && heap[child + 1].waitSequence
+						< heap[child].waitSequence)
+					child++;
+				if (state.waitSequence < heap[child].waitSequence)
+					break;
+
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		/**
+		 * Give ownership of this queue to another thread (or to no thread),
+		 * moving the priority donated by the waiting threads along with it.
+		 * 
+		 * @param state the new owner, or <tt>null</tt>.
+		 */
+		private void setOwner(ThreadState state) {
+			if (owner == state)
+				return;
+
+			if (owner != null && donated != -1) {
+				ThreadState oldOwner = owner;
+				int oldDonation = donated;
+
+				owner = null;
+				donated = -1;
+				oldOwner.changeDonation(oldDonation, -1);
+			}
+
+			owner = state;
+			updateDonation();
+		}
+
+		/**
+		 * Recompute the priority this queue donates to its owner, and pass
+		 * any change on to the owner.
+		 */
+		private void updateDonation() {
+			if (owner == null)
+				return;
+
+			int donation = transferPriority ? highestPriority(nonEmpty) : -1;
+			if (donation == donated)
+				return;
+
+			int oldDonation = donated;
+			donated = donation;
+			owner.changeDonation(oldDonation, donation);
 		}
 
 		/**
@@ -170,12 +465,39 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The threads waiting at each effective priority, in a binary min-heap
+		 * ordered by <tt>waitSequence</tt>; allocated on first use.
+		 */
+		private ThreadState[][] heaps = new ThreadState[priorityMaximum + 1][];
+
+		/** The number of threads in each heap. */
+		private int[] sizes = new int[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if some thread is waiting at priority <i>p</i>. */
+		private int nonEmpty = 0;
+
+		/** The thread that last acquired this queue, or <tt>null</tt>. */
+		private ThreadState owner = null;
+
+		/** The priority currently donated to <tt>owner</tt>, or -1. */
+		private int donated = -1;
+
+		/** The number of times a thread has waited on this queue. */
+		private long numWaits = 0;
 	}
 
 	/**
-	 * The scheduling state of a thread. This should include the thread's
-	 * priority, its effective priority, any objects it owns, and the queue it's
-	 * waiting for, if any.
+	 * The scheduling state of a thread. This includes the thread's priority,
+	 * its effective priority, the priorities donated to it by the queues it
+	 * owns, and the queue it's waiting for, if any.
+	 * 
+	 * <p>
+	 * The effective priority is cached, and only recomputed when one of its
+	 * inputs changes. If it does change, the new value is pushed to the queue
+	 * this thread is waiting on, and from there to that queue's owner, so a
+	 * donation only ever touches the threads whose priority actually moves.
 	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
@@ -189,7 +511,7 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);
+			priority = effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -207,8 +529,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +543,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +559,16 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			if (waitQueue.owner == this)
+				waitQueue.setOwner(null);
+
+			waitingOn = waitQueue;
+			waitSequence = waitQueue.numWaits++;
+
+			waitQueue.add(this);
+			waitQueue.updateDonation();
 		}
 
 		/**
@@ -252,7 +582,45 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn != waitQueue);
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Replace one priority donated to this thread with another.
+		 * 
+		 * @param oldDonation the priority no longer donated, or -1.
+		 * @param newDonation the priority now donated, or -1.
+		 */
+		private void changeDonation(int oldDonation, int newDonation) {
+			if (oldDonation != -1 && --donations[oldDonation] == 0)
+				donationMask &= ~(1 << oldDonation);
+
+			if (newDonation != -1 && donations[newDonation]++ == 0)
+				donationMask |= 1 << newDonation;
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority, and if it changed, move this
+		 * thread to its new place in the queue it's waiting on.
+		 */
+		private void updateEffectivePriority() {
+			int newPriority = Math.max(priority, highestPriority(donationMask));
+			if (newPriority == effectivePriority)
+				return;
+
+			if (waitingOn == null) {
+				effectivePriority = newPriority;
+				return;
+			}
+
+			waitingOn.remove(this);
+			effectivePriority = newPriority;
+			waitingOn.add(this);
+			waitingOn.updateDonation();
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +628,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The number of owned queues donating each priority. */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if <tt>donations[p]</tt> is non-zero. */
+		private int donationMask = 0;
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		private PriorityQueue waitingOn = null;
+
+		/** Orders this thread among the others waiting on the same queue. */
+		private long waitSequence;
+
+		/** The index of this thread in its heap in <tt>waitingOn</tt>. */
+		private int heapIndex = -1;
 	}
 }
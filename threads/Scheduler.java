@@ -151,4 +151,19 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled,
+	 * just before the current thread is preempted. Schedulers that measure
+	 * how much of its quantum a thread has used can charge it here.
+	 */
+	public void timerInterrupt() {
+	}
+
+	/**
+	 * Print any statistics this scheduler has collected. Called by the kernel
+	 * just before it halts the machine.
+	 */
+	public void print() {
+	}
 }
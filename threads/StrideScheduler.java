@@ -0,0 +1,419 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * A scheduler that shares the processor in proportion to tickets, without
+ * randomness.
+ *
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread, just
+ * like a lottery scheduler. Each thread's <i>stride</i> is inversely
+ * proportional to its tickets, and each thread has a <i>pass</i> that advances
+ * by its stride every time it is dequeued. The next thread to be dequeued is
+ * always the one with the lowest pass, so over any interval each thread gets
+ * within one dequeue of its exact share.
+ *
+ * <p>
+ * Tickets are transferred, and add up, as in a lottery scheduler.
+ */
+public class StrideScheduler extends TicketScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	/**
+	 * Test ticket transfer and the shares threads get on a private scheduler,
+	 * including when passes wrap around.
+	 */
+	public static void selfTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		StrideScheduler s = new StrideScheduler();
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+
+		// a holds the lock, b and c wait for it
+		ThreadQueue lock = s.newThreadQueue(true);
+		s.setPriority(a, 2);
+		s.setPriority(b, 3);
+		s.setPriority(c, 5);
+		lock.acquire(a);
+		lock.waitForAccess(b);
+		lock.waitForAccess(c);
+		Lib.assertTrue(s.getEffectivePriority(a) == 10);
+
+		// with the donation, a runs 10 times for every 4 times d runs
+		KThread d = new KThread().setName("d");
+		s.setPriority(d, 4);
+		ThreadQueue ready = s.newThreadQueue(false);
+		ready.waitForAccess(d);
+		ready.waitForAccess(a);
+		int aRuns = 0;
+		for (int i = 0; i < 140; i++) {
+			KThread next = ready.nextThread();
+			if (next == a)
+				aRuns++;
+			ready.waitForAccess(next);
+		}
+		Lib.assertTrue(Math.abs(aRuns - 100) <= 1);
+		ready.nextThread();
+		ready.nextThread();
+
+		Lib.assertTrue(lock.nextThread() == b);
+		Lib.assertTrue(s.getEffectivePriority(a) == 2
+				&& s.getEffectivePriority(b) == 8);
+		lock.nextThread();
+		lock.nextThread();
+
+		// shares stay right when passes wrap around
+		StrideQueue wrapping = (StrideQueue) s.newThreadQueue(false);
+		wrapping.globalPass = Long.MAX_VALUE - 10 * stride1;
+		s.setPriority(b, 1);
+		s.setPriority(c, 3);
+		wrapping.waitForAccess(b);
+		wrapping.waitForAccess(c);
+		int cRuns = 0;
+		for (int i = 0; i < 400; i++) {
+			KThread next = wrapping.nextThread();
+			if (next == c)
+				cRuns++;
+			wrapping.waitForAccess(next);
+		}
+		Lib.assertTrue(Math.abs(cRuns - 300) <= 1);
+		wrapping.nextThread();
+		wrapping.nextThread();
+
+		// large ticket counts stay proportional: 2^30 tickets run 1024
+		// times as often as 2^20
+		ThreadQueue large = s.newThreadQueue(false);
+		s.setPriority(b, 1 << 20);
+		s.setPriority(c, 1 << 30);
+		large.waitForAccess(b);
+		large.waitForAccess(c);
+		int bRuns = 0;
+		for (int i = 0; i < 1025 * 4; i++) {
+			KThread next = large.nextThread();
+			if (next == b)
+				bRuns++;
+			large.waitForAccess(next);
+		}
+		Lib.assertTrue(Math.abs(bRuns - 4) <= 1);
+		large.nextThread();
+		large.nextThread();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Dispatch a hundred threads with different tickets millions of times,
+	 * and compare the shares they get with the shares a lottery scheduler
+	 * gives them.
+	 */
+	public static void benchmark() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		final int numThreads = 100, rounds = 1000;
+		String strideResult = shares(new StrideScheduler(), numThreads,
+				rounds);
+		String lotteryResult = shares(new LotteryScheduler(), numThreads,
+				rounds);
+
+		System.out.println("StrideScheduler: " + strideResult);
+		System.out.println("LotteryScheduler: " + lotteryResult);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Give thread <i>i</i> <i>i</i>+1 tickets, and dispatch them from one
+	 * queue until each should have run <tt>rounds</tt> times per ticket.
+	 */
+	private static String shares(Scheduler s, int numThreads, int rounds) {
+		ThreadQueue queue = s.newThreadQueue(false);
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread().setName("share" + i);
+			s.setPriority(threads[i], i + 1);
+			queue.waitForAccess(threads[i]);
+		}
+
+		long dispatches = (long) rounds * numThreads * (numThreads + 1) / 2;
+		IdentityHashMap<KThread, long[]> runs =
+				new IdentityHashMap<KThread, long[]>();
+		for (int i = 0; i < numThreads; i++)
+			runs.put(threads[i], new long[1]);
+
+		long start = System.nanoTime();
+		for (long i = 0; i < dispatches; i++) {
+			KThread next = queue.nextThread();
+			runs.get(next)[0]++;
+			queue.waitForAccess(next);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// the largest error, in dispatches, of any thread's share
+		long worst = 0;
+		for (int i = 0; i < numThreads; i++) {
+			long expected = (long) rounds * (i + 1);
+			worst = Math.max(worst, Math.abs(runs.get(threads[i])[0]
+					- expected));
+		}
+
+		return elapsed / dispatches + " ns per dispatch, worst share error "
+				+ worst + " of " + dispatches + " dispatches among "
+				+ numThreads + " threads";
+	}
+
+	/**
+	 * The stride of a thread with one ticket. Strides are this divided by the
+	 * number of tickets, so even a thread with <tt>priorityMaximum</tt>
+	 * tickets has a stride of 512, and strides stay proportional to within
+	 * 0.2%. Passes wrap around after about 2^23 dispatches of a one-ticket
+	 * thread, which <tt>before()</tt> allows for.
+	 */
+	private static final long stride1 = 1L << 40;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+	 * pass. Ties go to the thread that has been waiting longest.
+	 *
+	 * <p>
+	 * The waiting threads form a binary min-heap, and each thread remembers
+	 * its index in the heap, so a thread whose tickets change while it waits
+	 * can be moved to its new place in O(log n).
+	 */
+	protected class StrideQueue extends TicketQueue {
+		StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Advance the pass of a dequeued thread by its stride.
+		 *
+		 * @param ticketState the dequeued thread.
+		 */
+		protected void dequeued(TicketState ticketState) {
+			StrideState state = (StrideState) ticketState;
+
+			// the queue's virtual time is the pass of the thread it dequeued
+			globalPass = state.pass;
+			state.pass += state.stride();
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the waiting thread with the lowest pass.
+		 */
+		protected StrideState pickNextThread() {
+			return (size == 0) ? null : heap[0];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + "(" + heap[i].pass + ") ");
+		}
+
+		/**
+		 * Add a thread to the heap. A thread that has been away longer than
+		 * its pass accounts for is not allowed to catch up on the time it
+		 * missed, so its pass starts no lower than the queue's virtual time.
+		 *
+		 * @param ticketState the thread to add.
+		 */
+		protected void add(TicketState ticketState) {
+			StrideState state = (StrideState) ticketState;
+
+			if (state.pass - globalPass < 0)
+				state.pass = globalPass;
+			state.waitSequence = numWaits++;
+
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, Math.max(initialCapacity, 2 * size));
+
+			state.index = size++;
+			heap[state.index] = state;
+			siftUp(state.index);
+
+			changeTotal(state.getEffectiveTickets());
+		}
+
+		/**
+		 * Remove a thread from the heap.
+		 *
+		 * @param ticketState the thread to remove.
+		 */
+		protected void remove(TicketState ticketState) {
+			StrideState state = (StrideState) ticketState;
+			int i = state.index;
+
+			size--;
+			if (i != size) {
+				heap[i] = heap[size];
+				heap[i].index = i;
+				siftDown(i);
+				siftUp(i);
+			}
+			heap[size] = null;
+			state.index = -1;
+
+			changeTotal(-state.getEffectiveTickets());
+		}
+
+		/**
+		 * Called when a waiting thread's tickets change. The part of its pass
+		 * that it has not yet reached is scaled by the change in its stride,
+		 * so the thread immediately moves to where the new tickets put it.
+		 *
+		 * @param ticketState the waiting thread.
+		 * @param oldTickets its effective tickets before the change.
+		 */
+		protected void ticketsChanged(TicketState ticketState,
+				long oldTickets) {
+			StrideState state = (StrideState) ticketState;
+
+			long remain = state.pass - globalPass;
+			state.pass = globalPass + (long) ((double) remain * oldTickets
+					/ state.getEffectiveTickets());
+
+			siftDown(state.index);
+			siftUp(state.index);
+
+			changeTotal(state.getEffectiveTickets() - oldTickets);
+		}
+
+		/**
+		 * Passes are compared by their difference, so the order stays right
+		 * when they wrap around: the passes of waiting threads are never
+		 * more than a few strides apart.
+		 */
+		private boolean before(StrideState a, StrideState b) {
+			if (a.pass != b.pass)
+				return a.pass - b.pass < 0;
+			else
+				return a.waitSequence < b.waitSequence;
+		}
+
+		private void siftUp(int i) {
+			StrideState state = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[i] = heap[parent];
+				heap[i].index = i;
+				i = parent;
+			}
+
+			heap[i] = state;
+			state.index = i;
+		}
+
+		private void siftDown(int i) {
+			StrideState state = heap[i];
+
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				heap[i] = heap[child];
+				heap[i].index = i;
+				i = child;
+			}
+
+			heap[i] = state;
+			state.index = i;
+		}
+
+		/** The waiting threads, as a binary min-heap ordered by pass. */
+		private StrideState[] heap = new StrideState[0];
+
+		private int size = 0;
+
+		/** The pass of the thread most recently dequeued. */
+		private long globalPass = 0;
+
+		/** The number of times a thread has waited on this queue. */
+		private long numWaits = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a stride scheduler: its ticket
+	 * state, its pass, and its place in the queue it's waiting on.
+	 */
+	protected class StrideState extends TicketState {
+		/**
+		 * Allocate a new <tt>StrideState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public StrideState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the amount by which this thread's pass advances each time it
+		 * is dequeued.
+		 *
+		 * @return the stride of this thread.
+		 */
+		long stride() {
+			return Math.max(1, stride1 / getEffectiveTickets());
+		}
+
+		/** The virtual time at which this thread should next be dequeued. */
+		private long pass = 0;
+
+		/** Orders this thread among waiters with the same pass. */
+		private long waitSequence;
+
+		/** The index of this thread in its queue's heap. */
+		private int index = -1;
+	}
+
+	private static final int initialCapacity = 16;
+}
@@ -44,6 +44,12 @@ public class ThreadedKernel extends Kernel {
 	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
 	 * autograder never calls this method, so it is safe to put additional tests
 	 * here.
+	 *
+	 * <p>
+	 * The event queue, scheduler and timing wheel tests always run, and only
+	 * fail an assertion if something is broken. If
+	 * <tt>ThreadedKernel.benchmark</tt> is true, <tt>benchmark()</tt> runs
+	 * afterwards.
 	 */
 	public void selfTest() {
 //		KThread.selfTest();
@@ -52,6 +58,27 @@ public class ThreadedKernel extends Kernel {
 //		if (Machine.bank() != null) {
 //			ElevatorBank.selfTest();
 //		}
+		EventQueue.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		StrideScheduler.selfTest();
+		TimingWheel.selfTest();
+
+		if (Config.getBoolean("ThreadedKernel.benchmark", false))
+			benchmark();
+	}
+
+	/**
+	 * Time this kernel's data structures against the simpler ones they
+	 * replaced, and print the results.
+	 */
+	public void benchmark() {
+		EventQueue.benchmark();
+		KThread.switchBenchmark();
+		PriorityScheduler.benchmark();
+		LotteryScheduler.benchmark();
+		StrideScheduler.benchmark();
+		TimingWheel.benchmark();
 	}
 
 	/**
@@ -65,6 +92,7 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		scheduler.print();
 		Machine.halt();
 	}
 
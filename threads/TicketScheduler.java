@@ -0,0 +1,330 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor in proportion to the number of
+ * tickets each thread holds. This is the common part of the lottery and
+ * stride schedulers: the ticket range, and ticket transfer.
+ *
+ * <p>
+ * Tickets are transferred through queues created with
+ * <tt>transferPriority</tt> set. Unlike a priority scheduler, transferred
+ * tickets add (as opposed to just taking the maximum): a thread's effective
+ * tickets are its own tickets plus every ticket held by the threads waiting on
+ * the queues it owns. The sum is kept up to date by passing each change along
+ * the chain of owners as a delta.
+ *
+ * <p>
+ * A subclass decides which waiting thread a queue dequeues, by extending
+ * <tt>TicketQueue</tt> and <tt>TicketState</tt>.
+ */
+public abstract class TicketScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new ticket scheduler.
+	 */
+	public TicketScheduler() {
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread, which a subclass
+	 * creates by overriding <tt>getThreadState()</tt>.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected TicketState getTicketState(KThread thread) {
+		return (TicketState) getThreadState(thread);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> whose waiting threads donate their tickets to its
+	 * owner, if it transfers priority. A subclass keeps the waiting threads,
+	 * and chooses which one to dequeue.
+	 */
+	protected abstract class TicketQueue extends ThreadQueue {
+		/**
+		 * Allocate a new ticket queue.
+		 *
+		 * @param transferPriority <tt>true</tt> if this queue should transfer
+		 * tickets from waiting threads to the owning thread.
+		 */
+		protected TicketQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getTicketState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getTicketState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			TicketState next = pickNextThread();
+
+			setOwner(null);
+			if (next == null)
+				return null;
+
+			remove(next);
+			next.waitingOn = null;
+			dequeued(next);
+
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return.
+		 *
+		 * @return the thread to dequeue, or <tt>null</tt> if no thread is
+		 * waiting.
+		 */
+		protected abstract TicketState pickNextThread();
+
+		/**
+		 * Start keeping track of a thread that has started waiting. The
+		 * subclass must pass its tickets to <tt>changeTotal()</tt>.
+		 *
+		 * @param state the thread to add.
+		 */
+		protected abstract void add(TicketState state);
+
+		/**
+		 * Stop keeping track of a thread that is no longer waiting. The
+		 * subclass must take its tickets away with <tt>changeTotal()</tt>.
+		 *
+		 * @param state the thread to remove.
+		 */
+		protected abstract void remove(TicketState state);
+
+		/**
+		 * Called when a waiting thread's effective tickets change. The
+		 * subclass must pass the change to <tt>changeTotal()</tt>.
+		 *
+		 * @param state the waiting thread.
+		 * @param oldTickets its effective tickets before the change.
+		 */
+		protected abstract void ticketsChanged(TicketState state,
+				long oldTickets);
+
+		/**
+		 * Called when a thread has been chosen and removed, before it
+		 * acquires this queue.
+		 *
+		 * @param state the dequeued thread.
+		 */
+		protected void dequeued(TicketState state) {
+		}
+
+		/**
+		 * Add to the tickets held by the waiting threads, and pass the change
+		 * on to the owner if tickets are transferred.
+		 *
+		 * @param delta the number of tickets to add.
+		 */
+		protected void changeTotal(long delta) {
+			total += delta;
+
+			if (transferPriority && owner != null)
+				owner.addTickets(delta);
+		}
+
+		/**
+		 * Give ownership of this queue to another thread (or to no thread),
+		 * moving the tickets donated by the waiting threads along with it.
+		 *
+		 * @param state the new owner, or <tt>null</tt>.
+		 */
+		private void setOwner(TicketState state) {
+			if (owner == state)
+				return;
+
+			if (transferPriority && owner != null)
+				owner.addTickets(-total);
+
+			owner = state;
+
+			if (transferPriority && owner != null)
+				owner.addTickets(total);
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The sum of the effective tickets of the waiting threads. */
+		protected long total = 0;
+
+		/** The thread that last acquired this queue, or <tt>null</tt>. */
+		private TicketState owner = null;
+	}
+
+	/**
+	 * The scheduling state of a thread under a ticket scheduler: its own
+	 * tickets, its effective tickets, and the queue it's waiting on, if any.
+	 */
+	protected class TicketState extends ThreadState {
+		/**
+		 * Allocate a new <tt>TicketState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public TicketState(KThread thread) {
+			super(thread);
+
+			priority = priorityDefault;
+			effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Return the effective number of tickets of the associated thread,
+		 * limited to <tt>priorityMaximum</tt>.
+		 *
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, priorityMaximum);
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 *
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+
+			addTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(TicketQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			if (waitQueue.owner == this)
+				waitQueue.setOwner(null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever
+		 * is guarded by <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue the queue the associated thread now owns.
+		 */
+		public void acquire(TicketQueue waitQueue) {
+			Lib.assertTrue(waitingOn != waitQueue);
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Return this thread's own tickets plus those donated to it.
+		 *
+		 * @return the effective tickets, which may exceed
+		 * <tt>priorityMaximum</tt>.
+		 */
+		protected long getEffectiveTickets() {
+			return effectiveTickets;
+		}
+
+		/**
+		 * Add to the effective tickets of this thread, and to those of every
+		 * thread it is donating to.
+		 *
+		 * @param delta the number of tickets to add.
+		 */
+		private void addTickets(long delta) {
+			long oldTickets = effectiveTickets;
+			effectiveTickets += delta;
+
+			if (waitingOn != null)
+				waitingOn.ticketsChanged(this, oldTickets);
+		}
+
+		/** This thread's own tickets plus those donated to it. */
+		private long effectiveTickets;
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		private TicketQueue waitingOn = null;
+	}
+}
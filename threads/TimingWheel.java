@@ -0,0 +1,385 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * A hierarchical timing wheel, which keeps timers sorted by the time they
+ * expire, in ticks.
+ *
+ * <p>
+ * The wheel has several levels of 64 slots each. A slot at level 0 holds the
+ * timers that expire at one particular tick, a slot at level 1 covers 64
+ * ticks, a slot at level 2 covers 4096 ticks, and so on; timers too far in the
+ * future for the top level wait in an overflow list. When time reaches the
+ * start of a higher-level slot, its timers are redistributed to the levels
+ * below. Adding or removing a timer is O(1), and each timer is moved down at
+ * most once per level, so advancing time costs O(1) per expired timer plus
+ * the slots passed over, no matter how many timers are pending.
+ *
+ * <p>
+ * Timers are intrusive: each <tt>Timer</tt> object holds its own links, so
+ * the wheel allocates nothing. A timer may be added again after it expires or
+ * is removed.
+ */
+public class TimingWheel {
+	/**
+	 * Allocate a new timing wheel whose time starts at <i>time</i>.
+	 *
+	 * @param time the current time, in ticks.
+	 */
+	public TimingWheel(long time) {
+		current = time;
+	}
+
+	/**
+	 * A timer in a timing wheel.
+	 */
+	public static class Timer {
+		/**
+		 * Return the time at which this timer expires.
+		 *
+		 * @return the expiry time of this timer.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Test whether this timer is in a wheel, waiting to expire.
+		 *
+		 * @return <tt>true</tt> if this timer is pending.
+		 */
+		public boolean isPending() {
+			return level != -1;
+		}
+
+		private long time;
+
+		/** The level this timer is in, or -1 if it is not pending. */
+		private int level = -1;
+
+		private int slot;
+
+		private Timer prev = null, next = null;
+	}
+
+	/**
+	 * Add a timer to this wheel. A timer whose time has already passed
+	 * expires at the next call to <tt>advance()</tt>.
+	 *
+	 * @param timer the timer, which must not be pending.
+	 * @param time the time at which the timer should expire.
+	 */
+	public void add(Timer timer, long time) {
+		Lib.assertTrue(!timer.isPending());
+
+		timer.time = time;
+		place(timer);
+		size++;
+	}
+
+	/**
+	 * Remove a pending timer from this wheel without it expiring.
+	 *
+	 * @param timer the timer to remove.
+	 * @return <tt>true</tt> if the timer was pending.
+	 */
+	public boolean remove(Timer timer) {
+		if (!timer.isPending())
+			return false;
+
+		unlink(timer);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Return the number of pending timers.
+	 *
+	 * @return the number of timers in this wheel.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Advance time to <i>time</i>, removing every timer that expires at or
+	 * before it. The expired timers are returned as a list linked through
+	 * <tt>next()</tt>, in no particular order.
+	 *
+	 * @param time the new current time, in ticks.
+	 * @return the first expired timer, or <tt>null</tt> if none expired.
+	 */
+	public Timer advance(long time) {
+		Timer expired = null;
+
+		while (current <= time) {
+			int index = (int) (current & slotMask);
+
+			if (index == 0)
+				cascade(1);
+
+			Timer timer = slots[0][index];
+			if (timer != null) {
+				slots[0][index] = null;
+				occupied[0] &= ~(1L << index);
+
+				while (timer != null) {
+					Timer next = timer.next;
+					timer.level = -1;
+					timer.prev = null;
+					timer.next = expired;
+					expired = timer;
+					size--;
+					timer = next;
+				}
+			}
+
+			// skip ahead to the next occupied slot or the next cascade
+			long later = (index == slotMask) ? 0 : occupied[0]
+					& (-1L << (index + 1));
+			long next;
+			if (later != 0)
+				next = current - index + Long.numberOfTrailingZeros(later);
+			else
+				next = current - index + numSlots;
+
+			current = Math.min(next, time + 1);
+		}
+
+		return expired;
+	}
+
+	/**
+	 * Return the next timer in a list of expired timers.
+	 *
+	 * @param timer a timer returned by <tt>advance()</tt>.
+	 * @return the next expired timer, or <tt>null</tt>.
+	 */
+	public static Timer next(Timer timer) {
+		return timer.next;
+	}
+
+	/**
+	 * Put a timer in the slot for its time, relative to the current time.
+	 */
+	private void place(Timer timer) {
+		long time = Math.max(timer.time, current);
+		long delta = time - current;
+
+		int level = 0;
+		while (level < numLevels && delta >= 1L << (slotBits * (level + 1)))
+			level++;
+
+		if (level == numLevels) {
+			link(timer, numLevels, 0);
+			return;
+		}
+
+		link(timer, level, (int) ((time >> (slotBits * level)) & slotMask));
+	}
+
+	/**
+	 * Redistribute the timers in the current slot of <i>level</i> to the
+	 * levels below. Time has just reached the start of this slot; if that is
+	 * also the start of the level above's current slot, cascade that first.
+	 */
+	private void cascade(int level) {
+		if (level == numLevels) {
+			Timer timer = overflow;
+			overflow = null;
+			relink(timer);
+			return;
+		}
+
+		int index = (int) ((current >> (slotBits * level)) & slotMask);
+		if (index == 0)
+			cascade(level + 1);
+
+		Timer timer = slots[level][index];
+		if (timer == null)
+			return;
+
+		slots[level][index] = null;
+		occupied[level] &= ~(1L << index);
+		relink(timer);
+	}
+
+	private void relink(Timer timer) {
+		while (timer != null) {
+			Timer next = timer.next;
+			timer.prev = timer.next = null;
+			place(timer);
+			timer = next;
+		}
+	}
+
+	private void link(Timer timer, int level, int slot) {
+		Timer head = (level == numLevels) ? overflow : slots[level][slot];
+
+		timer.level = level;
+		timer.slot = slot;
+		timer.prev = null;
+		timer.next = head;
+		if (head != null)
+			head.prev = timer;
+
+		if (level == numLevels) {
+			overflow = timer;
+		}
+		else {
+			slots[level][slot] = timer;
+			occupied[level] |= 1L << slot;
+		}
+	}
+
+	private void unlink(Timer timer) {
+		int level = timer.level, slot = timer.slot;
+
+		if (timer.next != null)
+			timer.next.prev = timer.prev;
+
+		if (timer.prev != null) {
+			timer.prev.next = timer.next;
+		}
+		else if (level == numLevels) {
+			overflow = timer.next;
+		}
+		else {
+			slots[level][slot] = timer.next;
+			if (timer.next == null)
+				occupied[level] &= ~(1L << slot);
+		}
+
+		timer.level = -1;
+		timer.prev = timer.next = null;
+	}
+
+	/**
+	 * Check that timers expire at the first advance at or after their time.
+	 */
+	public static void selfTest() {
+		Random random = new Random(0);
+
+		// correctness: advance in uneven steps past timers spread over all
+		// levels and the overflow list
+		TimingWheel wheel = new TimingWheel(0);
+		Timer[] timers = new Timer[1000];
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = new Timer();
+			wheel.add(timers[i], (long) random.nextInt(1 << 25));
+		}
+		for (int i = 0; i < timers.length; i += 7)
+			Lib.assertTrue(wheel.remove(timers[i]));
+
+		long time = 0, previous = -1;
+		while (wheel.size() > 0) {
+			time += 1 + random.nextInt(20000);
+			for (Timer t = wheel.advance(time); t != null; t = next(t))
+				Lib.assertTrue(t.getTime() > previous && t.getTime() <= time);
+			previous = time;
+		}
+	}
+
+	/**
+	 * Compare the cost of a timer interrupt with a timing wheel and with a
+	 * list that is scanned on every interrupt, for increasing numbers of
+	 * sleeping threads.
+	 */
+	public static void benchmark() {
+		// warm up the JIT before timing anything
+		timeWheel(1000);
+		timeList(1000);
+
+		for (int sleepers = 10; sleepers <= 100000; sleepers *= 10)
+			System.out.println("TimingWheel: " + sleepers + " sleepers, "
+					+ timeWheel(sleepers) + " ns per interrupt, list "
+					+ timeList(sleepers) + " ns per interrupt");
+	}
+
+	/** The number of timer interrupts each benchmark runs. */
+	private static final int benchInterrupts = 2000;
+
+	/** The longest a benchmark sleeper sleeps, in ticks. */
+	private static final int benchSleep = 1000000;
+
+	/**
+	 * Keep <i>sleepers</i> timers pending, re-adding each one with a new random
+	 * time when it expires, and time the interrupts.
+	 */
+	private static long timeWheel(int sleepers) {
+		Random random = new Random(sleepers);
+		TimingWheel wheel = new TimingWheel(0);
+
+		for (int i = 0; i < sleepers; i++)
+			wheel.add(new Timer(), random.nextInt(benchSleep));
+
+		long time = 0;
+		long start = System.nanoTime();
+
+		for (int i = 0; i < benchInterrupts; i++) {
+			time += Stats.TimerTicks;
+
+			Timer t = wheel.advance(time);
+			while (t != null) {
+				Timer next = next(t);
+				wheel.add(t, time + random.nextInt(benchSleep));
+				t = next;
+			}
+		}
+
+		return (System.nanoTime() - start) / benchInterrupts;
+	}
+
+	/**
+	 * Run the same workload as <tt>timeWheel()</tt> with a linked list that
+	 * is scanned on every interrupt.
+	 */
+	private static long timeList(int sleepers) {
+		Random random = new Random(sleepers);
+		LinkedList<long[]> list = new LinkedList<long[]>();
+
+		for (int i = 0; i < sleepers; i++)
+			list.add(new long[] { random.nextInt(benchSleep) });
+
+		long time = 0;
+		long start = System.nanoTime();
+
+		for (int i = 0; i < benchInterrupts; i++) {
+			time += Stats.TimerTicks;
+
+			for (Iterator<long[]> it = list.iterator(); it.hasNext();) {
+				long[] sleeper = it.next();
+				if (sleeper[0] <= time)
+					sleeper[0] = time + random.nextInt(benchSleep);
+			}
+		}
+
+		return (System.nanoTime() - start) / benchInterrupts;
+	}
+
+	/** The next tick to process; every timer before it has expired. */
+	private long current;
+
+	private int size = 0;
+
+	private static final int slotBits = 6;
+
+	private static final int numSlots = 1 << slotBits;
+
+	private static final int slotMask = numSlots - 1;
+
+	private static final int numLevels = 4;
+
+	private Timer[][] slots = new Timer[numLevels][numSlots];
+
+	/** Bit <i>s</i> of <tt>occupied[l]</tt> is set if slot <i>s</i> is used. */
+	private long[] occupied = new long[numLevels];
+
+	/** Timers too far in the future for the top level. */
+	private Timer overflow = null;
+}
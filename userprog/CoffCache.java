@@ -0,0 +1,317 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the parsed headers of recently run executables, so that running
+ * the same program again does not read its file and section headers from the
+ * file system.
+ *
+ * <p>
+ * The first time an executable is loaded, its file header and section table
+ * are read in two transfers, validated as <tt>Coff</tt> validates them, and
+ * kept along with the file's length. A later load of a file with the same
+ * name and length builds its loader from the cached entry point and section
+ * table without any I/O. Only the headers are cached; section pages are still
+ * read from the process's own open file. An entry is discarded when a system
+ * call changes the file, and the least recently used entry is discarded when
+ * the cache holds <tt>UserKernel.coffCacheSize</tt> executables.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new, empty cache.
+	 *
+	 * @param capacity the number of executables to keep headers for.
+	 */
+	public CoffCache(final int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		images = new LinkedHashMap<String, Image>(capacity, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Image> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Load the executable in a file, using its cached headers if they are
+	 * there. As with <tt>Coff</tt>, the autograder is asked for a loader
+	 * first; its loader is used as is, and nothing is cached for it.
+	 *
+	 * @param file the file containing the executable, which becomes the
+	 * property of the returned loader.
+	 * @return a loader for the executable.
+	 * @exception EOFException if the executable is corrupt.
+	 */
+	public Coff load(OpenFile file) throws EOFException {
+		Coff coff = Machine.autoGrader().createLoader(file);
+		if (coff != null)
+			return coff;
+
+		String name = file.getName();
+		int length = file.length();
+
+		lock.acquire();
+
+		try {
+			Image image = images.get(name);
+			if (image != null && image.length == length) {
+				Lib.debug(dbgCoff, "\tusing cached headers of " + name);
+			}
+			else {
+				images.remove(name);
+
+				// don't keep headers if the file changed while they were read
+				int modifications = numModifications;
+				image = parse(file, length);
+				if (modifications == numModifications)
+					images.put(name, image);
+			}
+
+			return new CachedCoff(file, image);
+		}
+		finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Discard the cached headers of a file that has changed.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void invalidate(String name) {
+		numModifications++;
+
+		// most files written are not executables, so look before locking;
+		// the lookup cannot be interrupted
+		if (!images.containsKey(name))
+			return;
+
+		lock.acquire();
+		images.remove(name);
+		lock.release();
+	}
+
+	/**
+	 * Read and validate the file header, optional header and section table of
+	 * an executable, applying the same checks as <tt>Coff</tt> and
+	 * <tt>CoffSection</tt>.
+	 */
+	private Image parse(OpenFile file, int length) throws EOFException {
+		if (length < headerLength + aoutHeaderLength) {
+			Lib.debug(dbgCoff, "\tfile is not executable");
+			throw new EOFException();
+		}
+
+		byte[] headers = new byte[headerLength + aoutHeaderLength];
+		Lib.strictReadFile(file, 0, headers, 0, headers.length);
+
+		int magic = Lib.bytesToUnsignedShort(headers, 0);
+		int numSections = Lib.bytesToUnsignedShort(headers, 2);
+		int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
+		int flags = Lib.bytesToUnsignedShort(headers, 18);
+
+		if (magic != 0x0162) {
+			Lib.debug(dbgCoff, "\tincorrect magic number");
+			throw new EOFException();
+		}
+		if (numSections < 2 || numSections > 10) {
+			Lib.debug(dbgCoff, "\tbad section count");
+			throw new EOFException();
+		}
+		if ((flags & 0x0003) != 0x0003) {
+			Lib.debug(dbgCoff, "\tbad header flags");
+			throw new EOFException();
+		}
+
+		Image image = new Image(length, Lib.bytesToInt(headers,
+				headerLength + 16), numSections);
+
+		// the whole section table is read at once
+		int offset = headerLength + optionalHeaderLength;
+		int tableLength = numSections * CoffSection.headerLength;
+		if (offset + tableLength > length) {
+			Lib.debug(dbgCoff, "\tsection header truncated");
+			throw new EOFException();
+		}
+
+		byte[] table = new byte[tableLength];
+		Lib.strictReadFile(file, offset, table, 0, tableLength);
+
+		for (int s = 0; s < numSections; s++) {
+			int entry = s * CoffSection.headerLength;
+
+			image.names[s] = Lib.bytesToString(table, entry, 8);
+			int vaddr = Lib.bytesToInt(table, entry + 12);
+			int size = Lib.bytesToInt(table, entry + 16);
+			int contentOffset = Lib.bytesToInt(table, entry + 20);
+			int numRelocations = Lib.bytesToUnsignedShort(table, entry + 32);
+			int sectionFlags = Lib.bytesToInt(table, entry + 36);
+
+			if (numRelocations != 0) {
+				Lib.debug(dbgCoff, "\tsection needs relocation");
+				throw new EOFException();
+			}
+
+			switch (sectionFlags & 0x0FFF) {
+			case 0x0020:
+				image.executable[s] = true;
+				image.readOnly[s] = true;
+				image.initialized[s] = true;
+				break;
+			case 0x0040:
+				image.initialized[s] = true;
+				break;
+			case 0x0080:
+				break;
+			case 0x0100:
+				image.readOnly[s] = true;
+				image.initialized[s] = true;
+				break;
+			default:
+				Lib.debug(dbgCoff, "\tinvalid section flags: " + sectionFlags);
+				throw new EOFException();
+			}
+
+			if (vaddr % Processor.pageSize != 0 || size < 0
+					|| image.initialized[s]
+					&& (contentOffset < 0 || contentOffset + size > length)) {
+				Lib.debug(dbgCoff, "\tinvalid section addresses: vaddr="
+						+ vaddr + " size=" + size + " contentOffset="
+						+ contentOffset);
+				throw new EOFException();
+			}
+
+			image.sizes[s] = size;
+			image.contentOffsets[s] = contentOffset;
+			image.firstVPNs[s] = vaddr / Processor.pageSize;
+		}
+
+		return image;
+	}
+
+	/**
+	 * The parsed headers of an executable, and the length of the file they
+	 * were read from.
+	 */
+	private static class Image {
+		Image(int length, int entryPoint, int numSections) {
+			this.length = length;
+			this.entryPoint = entryPoint;
+
+			names = new String[numSections];
+			executable = new boolean[numSections];
+			readOnly = new boolean[numSections];
+			initialized = new boolean[numSections];
+			sizes = new int[numSections];
+			contentOffsets = new int[numSections];
+			firstVPNs = new int[numSections];
+		}
+
+		int length, entryPoint;
+
+		String[] names;
+
+		boolean[] executable, readOnly, initialized;
+
+		int[] sizes, contentOffsets, firstVPNs;
+	}
+
+	/**
+	 * A loader built from cached headers. Its sections read their pages from
+	 * its own open file.
+	 */
+	private static class CachedCoff extends Coff {
+		CachedCoff(OpenFile file, Image image) {
+			this.file = file;
+
+			entryPoint = image.entryPoint;
+			sections = new CoffSection[image.names.length];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = new CachedSection(this, file, image, s);
+		}
+
+		public int getEntryPoint() {
+			Lib.assertTrue(file != null);
+
+			return entryPoint;
+		}
+
+		public void close() {
+			file.close();
+			file = null;
+
+			sections = null;
+		}
+
+		private OpenFile file;
+	}
+
+	/**
+	 * A section of a loader built from cached headers. Pages are loaded
+	 * exactly as <tt>CoffSection</tt> loads them.
+	 */
+	private static class CachedSection extends CoffSection {
+		CachedSection(Coff coff, OpenFile file, Image image, int s) {
+			super(coff, image.names[s], image.executable[s],
+					image.readOnly[s], Lib.divRoundUp(image.sizes[s],
+							Processor.pageSize), image.firstVPNs[s]);
+
+			this.file = file;
+			initialized = image.initialized[s];
+			size = image.sizes[s];
+			contentOffset = image.contentOffsets[s];
+		}
+
+		public void loadPage(int spn, int ppn) {
+			Lib.assertTrue(spn >= 0 && spn < numPages);
+			Lib.assertTrue(ppn >= 0
+					&& ppn < Machine.processor().getNumPhysPages());
+
+			int pageSize = Processor.pageSize;
+			byte[] memory = Machine.processor().getMemory();
+			int paddr = ppn * pageSize;
+			int faddr = contentOffset + spn * pageSize;
+			int initlen;
+
+			if (!initialized)
+				initlen = 0;
+			else if (spn == numPages - 1)
+				initlen = size % pageSize;
+			else
+				initlen = pageSize;
+
+			if (initlen > 0)
+				Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+
+			Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+
+			Machine.processor().invalidateDecodeCache(ppn);
+		}
+
+		private OpenFile file;
+
+		private int size, contentOffset;
+	}
+
+	/** The cached headers of each executable, by name. */
+	private LinkedHashMap<String, Image> images;
+
+	private Lock lock = new Lock();
+
+	/** The number of calls to <tt>invalidate()</tt>. */
+	private int numModifications = 0;
+
+	/** The lengths of a COFF file header and a.out optional header. */
+	private static final int headerLength = 20, aoutHeaderLength = 28;
+
+	private static final char dbgCoff = 'c';
+}
@@ -0,0 +1,196 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A process's file descriptor table: an array of open files indexed by file
+ * descriptor.
+ *
+ * <p>
+ * Free descriptors are recorded in a bitmap, one bit per descriptor, packed
+ * into <tt>long</tt> words, so the lowest free descriptor is found with one
+ * bit scan per word; no word below the lowest free one is scanned. The array
+ * starts small and doubles when every descriptor in it is in use, up to the
+ * table's limit, so a large limit costs nothing until a process actually
+ * opens that many files.
+ *
+ * <p>
+ * A table does no locking of its own.
+ */
+public class FileTable {
+	/**
+	 * Allocate a new, empty file descriptor table.
+	 *
+	 * @param limit the most files that can be open at once.
+	 */
+	public FileTable(int limit) {
+		Lib.assertTrue(limit > 0);
+
+		this.limit = limit;
+		grow(Math.min(limit, wordBits));
+	}
+
+	/**
+	 * Return the most files that can be open at once.
+	 *
+	 * @return the number of descriptors.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Test whether every descriptor is in use.
+	 *
+	 * @return <tt>true</tt> if no more files can be added.
+	 */
+	public boolean isFull() {
+		return numOpen == limit;
+	}
+
+	/**
+	 * Give an open file the lowest free descriptor.
+	 *
+	 * @param file the open file.
+	 * @return the file descriptor, or -1 if the table is full.
+	 */
+	public int add(OpenFile file) {
+		Lib.assertTrue(file != null);
+
+		if (isFull())
+			return -1;
+
+		while (hint < free.length && free[hint] == 0)
+			hint++;
+
+		if (hint == free.length)
+			grow(Math.min(limit, 2 * files.length));
+
+		int fd = hint * wordBits + Long.numberOfTrailingZeros(free[hint]);
+		free[hint] &= ~(1L << fd);
+		files[fd] = file;
+		numOpen++;
+
+		return fd;
+	}
+
+	/**
+	 * Return the file a descriptor refers to.
+	 *
+	 * @param fd the file descriptor.
+	 * @return the open file, or <tt>null</tt> if the descriptor is not in
+	 * use.
+	 */
+	public OpenFile get(int fd) {
+		if (fd < 0 || fd >= files.length)
+			return null;
+
+		return files[fd];
+	}
+
+	/**
+	 * Free a descriptor. The file is not closed.
+	 *
+	 * @param fd the file descriptor, which must be in use.
+	 * @return the file the descriptor referred to.
+	 */
+	public OpenFile remove(int fd) {
+		OpenFile file = get(fd);
+		Lib.assertTrue(file != null);
+
+		files[fd] = null;
+		free[fd / wordBits] |= 1L << fd;
+		hint = Math.min(hint, fd / wordBits);
+		numOpen--;
+
+		return file;
+	}
+
+	/**
+	 * Find the lowest descriptor in use that is at least <i>fd</i>, so that
+	 * the open files can be visited in order.
+	 *
+	 * @param fd the first descriptor to consider.
+	 * @return the descriptor, or -1 if there is none.
+	 */
+	public int nextOpen(int fd) {
+		Lib.assertTrue(fd >= 0);
+
+		for (int word = fd / wordBits; word < free.length; word++) {
+			long used = ~free[word];
+			if (word == fd / wordBits)
+				used &= -1L << fd;
+
+			if (used != 0) {
+				// bits past the end of the array are clear, but not in use
+				fd = word * wordBits + Long.numberOfTrailingZeros(used);
+				return (fd < files.length) ? fd : -1;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Extend the table to <i>size</i> descriptors. The new descriptors are
+	 * free.
+	 */
+	private void grow(int size) {
+		int oldSize = (files == null) ? 0 : files.length;
+		Lib.assertTrue(size > oldSize);
+
+		OpenFile[] newFiles = new OpenFile[size];
+		long[] newFree = new long[(size + wordBits - 1) / wordBits];
+		if (files != null) {
+			System.arraycopy(files, 0, newFiles, 0, oldSize);
+			System.arraycopy(free, 0, newFree, 0, free.length);
+		}
+
+		for (int fd = oldSize; fd < size; fd++)
+			newFree[fd / wordBits] |= 1L << fd;
+
+		files = newFiles;
+		free = newFree;
+		hint = oldSize / wordBits;
+	}
+
+	/**
+	 * Check that descriptors are handed out lowest first, reused when freed,
+	 * and that the table grows to its limit and no further.
+	 */
+	public static void selfTest() {
+		FileTable table = new FileTable(200);
+		OpenFile file = new OpenFile();
+
+		for (int i = 0; i < 200; i++)
+			Lib.assertTrue(table.add(file) == i);
+		Lib.assertTrue(table.isFull() && table.add(file) == -1);
+
+		table.remove(130);
+		table.remove(5);
+		table.remove(70);
+		Lib.assertTrue(table.get(5) == null && table.get(200) == null);
+		Lib.assertTrue(table.nextOpen(5) == 6 && table.nextOpen(130) == 131);
+		Lib.assertTrue(table.add(file) == 5);
+		Lib.assertTrue(table.add(file) == 70);
+		Lib.assertTrue(table.add(file) == 130);
+
+		for (int i = 0; i < 200; i++)
+			table.remove(i);
+		Lib.assertTrue(table.nextOpen(0) == -1 && table.add(file) == 0);
+	}
+
+	private static final int wordBits = 64;
+
+	private int limit;
+
+	private int numOpen = 0;
+
+	private OpenFile[] files;
+
+	/** Bit <i>d</i> of word <i>d</i>/64 is set if descriptor <i>d</i> is free. */
+	private long[] free;
+
+	/** No word of <tt>free</tt> below this one has a free descriptor. */
+	private int hint = 0;
+}
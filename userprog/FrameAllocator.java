@@ -0,0 +1,357 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * Keeps track of which physical frames are free.
+ *
+ * <p>
+ * Free frames are recorded in a bitmap, one bit per frame, packed into
+ * <tt>long</tt> words, so a free frame is found with one bit scan per word.
+ * Single frames are handed out next-fit: the search starts at the word where
+ * the last one ended, so consecutive allocations tend to get consecutive
+ * frames, and the words that were just filled are not scanned again.
+ *
+ * <p>
+ * A range of contiguous frames is allocated buddy-style: the length is
+ * rounded up to a power of two, and the range starts on a multiple of that
+ * power. Only the frames asked for are taken; the rest of the block stays
+ * free. Because every block is aligned, freeing a range merges it back with
+ * its buddies without any bookkeeping beyond the bitmap.
+ *
+ * <p>
+ * An allocator does no locking of its own.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator with every frame free.
+	 *
+	 * @param numFrames the number of physical frames.
+	 */
+	public FrameAllocator(int numFrames) {
+		Lib.assertTrue(numFrames >= 0);
+
+		this.numFrames = numFrames;
+		free = new long[(numFrames + wordBits - 1) / wordBits];
+
+		for (int frame = 0; frame < numFrames; frame += wordBits) {
+			int count = Math.min(wordBits, numFrames - frame);
+			free[frame / wordBits] = (count == wordBits) ? -1L
+					: (1L << count) - 1;
+		}
+
+		numFree = numFrames;
+	}
+
+	/**
+	 * Return the number of frames that are free.
+	 *
+	 * @return the number of free frames.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Test whether a frame is free.
+	 *
+	 * @param frame the frame number.
+	 * @return <tt>true</tt> if the frame is free.
+	 */
+	public boolean isFree(int frame) {
+		Lib.assertTrue(frame >= 0 && frame < numFrames);
+
+		return (free[frame / wordBits] & (1L << frame)) != 0;
+	}
+
+	/**
+	 * Allocate one frame.
+	 *
+	 * @return the frame number, or -1 if every frame is in use.
+	 */
+	public int allocate() {
+		if (numFree == 0)
+			return -1;
+
+		// some word has a free bit, so this loop ends within one lap
+		while (free[hint] == 0) {
+			if (++hint == free.length)
+				hint = 0;
+		}
+
+		int bit = Long.numberOfTrailingZeros(free[hint]);
+		free[hint] &= ~(1L << bit);
+		numFree--;
+
+		return hint * wordBits + bit;
+	}
+
+	/**
+	 * Allocate <i>count</i> frames, not necessarily contiguous. Either all of
+	 * them are allocated, or none are.
+	 *
+	 * @param frames the array in which to store the frame numbers.
+	 * @param count the number of frames to allocate.
+	 * @return <tt>true</tt> if the frames were allocated.
+	 */
+	public boolean allocate(int[] frames, int count) {
+		Lib.assertTrue(count >= 0 && count <= frames.length);
+
+		if (count > numFree)
+			return false;
+
+		for (int i = 0; i < count; i++)
+			frames[i] = allocate();
+
+		return true;
+	}
+
+	/**
+	 * Allocate <i>count</i> contiguous frames. The first frame is aligned to
+	 * the smallest power of two that is at least <i>count</i>.
+	 *
+	 * @param count the number of frames to allocate.
+	 * @return the number of the first frame, or -1 if there is no free
+	 * aligned range long enough.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		if (count > numFree)
+			return -1;
+
+		int blockSize = Integer.highestOneBit(count);
+		if (blockSize < count)
+			blockSize <<= 1;
+
+		int first = (blockSize < wordBits) ? findSmallBlock(count, blockSize)
+				: findLargeBlock(count, blockSize);
+
+		if (first != -1)
+			mark(first, count, false);
+
+		return first;
+	}
+
+	/**
+	 * Return a frame to the free pool.
+	 *
+	 * @param frame the frame number, which must be in use.
+	 */
+	public void free(int frame) {
+		Lib.assertTrue(!isFree(frame));
+
+		free[frame / wordBits] |= 1L << frame;
+		numFree++;
+	}
+
+	/**
+	 * Return a range of contiguous frames to the free pool.
+	 *
+	 * @param first the number of the first frame.
+	 * @param count the number of frames, all of which must be in use.
+	 */
+	public void free(int first, int count) {
+		Lib.assertTrue(first >= 0 && count >= 0 && first + count <= numFrames);
+
+		mark(first, count, true);
+	}
+
+	/**
+	 * Find an aligned block of fewer than <tt>wordBits</tt> frames whose first
+	 * <i>count</i> frames are free. Blocks this small never cross a word.
+	 */
+	private int findSmallBlock(int count, int blockSize) {
+		long want = (1L << count) - 1;
+
+		for (int i = 0; i < free.length; i++) {
+			long word = free[hint];
+
+			for (int shift = 0; word != 0 && shift < wordBits; shift += blockSize) {
+				if (((word >>> shift) & want) == want)
+					return hint * wordBits + shift;
+			}
+
+			if (++hint == free.length)
+				hint = 0;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Find an aligned block of a whole number of words whose first
+	 * <i>count</i> frames are free.
+	 */
+	private int findLargeBlock(int count, int blockSize) {
+		int blockWords = blockSize / wordBits;
+		int wantWords = (count + wordBits - 1) / wordBits;
+
+		for (int start = 0; start + wantWords <= free.length; start += blockWords) {
+			int i;
+			for (i = 0; i < wantWords; i++) {
+				int frames = Math.min(wordBits, count - i * wordBits);
+				long want = (frames == wordBits) ? -1L : (1L << frames) - 1;
+				if ((free[start + i] & want) != want)
+					break;
+			}
+
+			if (i == wantWords)
+				return start * wordBits;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Mark a range of frames free or in use, checking that each one was in the
+	 * other state.
+	 */
+	private void mark(int first, int count, boolean makeFree) {
+		int frame = first, end = first + count;
+
+		while (frame < end) {
+			int word = frame / wordBits;
+			int bits = Math.min(wordBits - frame % wordBits, end - frame);
+			long mask = ((bits == wordBits) ? -1L : (1L << bits) - 1) << frame;
+
+			if (makeFree) {
+				Lib.assertTrue((free[word] & mask) == 0);
+				free[word] |= mask;
+			}
+			else {
+				Lib.assertTrue((free[word] & mask) == mask);
+				free[word] &= ~mask;
+			}
+
+			frame += bits;
+		}
+
+		numFree += makeFree ? count : -count;
+	}
+
+	/**
+	 * Check single and contiguous allocation against a model.
+	 */
+	public static void selfTest() {
+		FrameAllocator allocator = new FrameAllocator(200);
+		int[] frames = new int[200];
+
+		Lib.assertTrue(allocator.allocate(frames, 200));
+		Lib.assertTrue(allocator.allocate() == -1
+				&& allocator.getNumFree() == 0);
+		for (int i = 0; i < 200; i++)
+			Lib.assertTrue(frames[i] == i);
+
+		// free every other frame; no two free frames are adjacent
+		for (int i = 0; i < 200; i += 2)
+			allocator.free(i);
+		Lib.assertTrue(allocator.allocateContiguous(2) == -1);
+		Lib.assertTrue(allocator.allocate(frames, 100));
+		Lib.assertTrue(!allocator.allocate(frames, 1));
+
+		// 64..191 is free but not aligned; freeing the buddy of 64..127
+		// makes 0..127 a free block
+		allocator.free(64, 64);
+		allocator.free(128, 64);
+		Lib.assertTrue(allocator.allocateContiguous(100) == -1);
+		allocator.free(0, 64);
+		Lib.assertTrue(allocator.allocateContiguous(100) == 0);
+		// small blocks are found next-fit, and the frame left over in a block
+		// is still usable
+		Lib.assertTrue(allocator.allocateContiguous(3) == 128);
+		Lib.assertTrue(allocator.allocateContiguous(4) == 132);
+		Lib.assertTrue(allocator.allocateContiguous(1) == 131);
+		allocator.free(0, 100);
+		allocator.free(128, 8);
+		Lib.assertTrue(allocator.getNumFree() == 192);
+	}
+
+	/**
+	 * Compare the cost of allocating and freeing a process's worth of frames
+	 * with a bitmap and with a list of free frames.
+	 */
+	public static void benchmark() {
+		// warm up the JIT before timing anything
+		timeBitmap(8 * 16, 16);
+		timeList(8 * 16, 16);
+
+		for (int pages = 8; pages <= 512; pages *= 4)
+			System.out.println("FrameAllocator: " + pages + " pages from "
+					+ (8 * pages) + " frames, bitmap "
+					+ timeBitmap(8 * pages, pages) + " ns, list "
+					+ timeList(8 * pages, pages)
+					+ " ns per allocate+free");
+	}
+
+	/**
+	 * Keep eight processes' worth of frames allocated, and time replacing the
+	 * oldest process with a new one, the way exec and exit churn does.
+	 */
+	private static long timeBitmap(int numFrames, int pages) {
+		FrameAllocator allocator = new FrameAllocator(numFrames);
+		int[][] processes = new int[8][pages];
+		for (int p = 0; p < processes.length - 1; p++)
+			allocator.allocate(processes[p], pages);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < benchRounds; i++) {
+			int[] frames = processes[(i + processes.length - 1)
+					% processes.length];
+			Lib.assertTrue(allocator.allocate(frames, pages));
+
+			int[] oldest = processes[i % processes.length];
+			for (int j = 0; j < pages; j++)
+				allocator.free(oldest[j]);
+		}
+
+		return (System.nanoTime() - start) / benchRounds;
+	}
+
+	/**
+	 * Run the same workload with a linked list of free frames, the way
+	 * <tt>UserKernel</tt> used to allocate them.
+	 */
+	private static long timeList(int numFrames, int pages) {
+		LinkedList<TranslationEntry> freeList = new LinkedList<TranslationEntry>();
+		for (int i = 0; i < numFrames; i++)
+			freeList.add(new TranslationEntry(0, i, false, false, false, false));
+
+		TranslationEntry[][] processes = new TranslationEntry[8][pages];
+		for (int p = 0; p < processes.length - 1; p++) {
+			for (int j = 0; j < pages; j++)
+				processes[p][j] = freeList.remove();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < benchRounds; i++) {
+			TranslationEntry[] entries = processes[(i + processes.length - 1)
+					% processes.length];
+			Lib.assertTrue(freeList.size() >= pages);
+			for (int j = 0; j < pages; j++)
+				entries[j] = freeList.remove();
+
+			TranslationEntry[] oldest = processes[i % processes.length];
+			for (int j = 0; j < pages; j++)
+				freeList.add(oldest[j]);
+		}
+
+		return (System.nanoTime() - start) / benchRounds;
+	}
+
+	private static final int benchRounds = 20000;
+
+	private static final int wordBits = 64;
+
+	private int numFrames;
+
+	private int numFree;
+
+	/** Bit <i>f</i> of word <i>f</i>/64 is set if frame <i>f</i> is free. */
+	private long[] free;
+
+	/** The word where the next search for a free frame starts. */
+	private int hint = 0;
+}
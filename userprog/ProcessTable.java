@@ -0,0 +1,117 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The kernel's table of processes, indexed by process ID. A process is in the
+ * table from the time it is executed until it is reaped: when its parent
+ * joins it, or when it exits with no parent to join it.
+ *
+ * <p>
+ * Process IDs are handed out next-fit, cycling through <tt>2</tt> to the
+ * table's limit after the root process takes <tt>1</tt>, so a process ID is
+ * not reused until every other one has been tried, and the root process's ID
+ * is never reused. The table never holds more processes than its limit, so
+ * a kernel that keeps executing and reaping processes uses a fixed amount of
+ * memory for them.
+ *
+ * <p>
+ * The table's lock must be held to use the table, and guards each process's
+ * parent, children and exit status too.
+ */
+public class ProcessTable {
+	/**
+	 * Allocate a new, empty process table.
+	 *
+	 * @param limit the most processes, running or waiting to be reaped, that
+	 * can be in the table at once.
+	 */
+	public ProcessTable(int limit) {
+		Lib.assertTrue(limit >= 2);
+
+		this.limit = limit;
+		processes = new UserProcess[limit + 1];
+	}
+
+	/**
+	 * Return the lock that guards this table.
+	 *
+	 * @return the lock.
+	 */
+	public Lock getLock() {
+		return lock;
+	}
+
+	/**
+	 * Give a process the next free process ID.
+	 *
+	 * @param process the process.
+	 * @return the process ID, or -1 if the table is full.
+	 */
+	public int add(UserProcess process) {
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		if (numProcesses == limit)
+			return -1;
+
+		// one lap; the root's ID, once taken, is not part of the cycle
+		for (int i = 0; i < limit; i++) {
+			int pid = nextPID;
+			advance();
+
+			if (processes[pid] == null) {
+				processes[pid] = process;
+				numProcesses++;
+				return pid;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Find a process by its ID.
+	 *
+	 * @param pid the process ID.
+	 * @return the process, or <tt>null</tt> if no process in the table has
+	 * that ID.
+	 */
+	public UserProcess get(int pid) {
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		if (pid < 1 || pid > limit)
+			return null;
+
+		return processes[pid];
+	}
+
+	/**
+	 * Remove a process from the table, freeing its ID.
+	 *
+	 * @param pid the ID of a process in the table.
+	 */
+	public void remove(int pid) {
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+		Lib.assertTrue(get(pid) != null);
+
+		processes[pid] = null;
+		numProcesses--;
+	}
+
+	private void advance() {
+		nextPID = (nextPID == limit) ? 2 : nextPID + 1;
+	}
+
+	private int limit;
+
+	private int numProcesses = 0;
+
+	/** The process with each ID; element 0 is not used. */
+	private UserProcess[] processes;
+
+	/** The ID the search for a free one starts from. */
+	private int nextPID = 1;
+
+	private Lock lock = new Lock();
+}
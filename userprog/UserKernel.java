@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
 
 /**
  * A kernel that can support multiple user processes.
@@ -31,22 +30,27 @@ public class UserKernel extends ThreadedKernel {
 			}
 		});
 
-		pageAlLock = new Lock(); // Init Lock
-
-		// Set the physical pages onto the linked list
-		//for (int i = 0; i < Machine.processor().getNumPhysPages(); i++ ) {
-		for (int i = Machine.processor().getNumPhysPages() - 1; i >= 0; i-- ) {
-			freePPT.add(new TranslationEntry(0, i, false, false, false, false));
-		}
+		coffCache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize",
+				16));
+		processTable = new ProcessTable(Config.getInteger(
+				"UserKernel.maxProcesses", 256));
 
+		pageAlLock = new Lock();
+		frameAllocator = new FrameAllocator(Machine.processor()
+				.getNumPhysPages());
 	}
 
 	/**
-	 * Test the console device.
+	 * Test the user memory copier, the frame allocator and the file table.
+	 * The console device test is left commented out, since it waits for
+	 * input.
 	 */
 	public void selfTest() {
-//		super.selfTest();
-//
+		super.selfTest();
+		VirtualMemoryCopier.selfTest();
+		FrameAllocator.selfTest();
+		FileTable.selfTest();
+
 //		System.out.println("Testing the console device. Typed characters");
 //		System.out.println("will be echoed until q is typed.");
 //
@@ -60,6 +64,16 @@ public class UserKernel extends ThreadedKernel {
 //		System.out.println("");
 	}
 
+	/**
+	 * Time this kernel's data structures, including the user memory copier
+	 * and the frame allocator.
+	 */
+	public void benchmark() {
+		super.benchmark();
+		VirtualMemoryCopier.benchmark();
+		FrameAllocator.benchmark();
+	}
+
 	/**
 	 * Returns the current process.
 	 * 
@@ -118,50 +132,110 @@ public class UserKernel extends ThreadedKernel {
 		super.terminate();
 	}
 
-	public TranslationEntry[] allocatePages(int numPages) {
-		TranslationEntry[] pageTable = null;
+	/**
+	 * Allocate physical pages for a process. Either all of them are allocated,
+	 * or none are.
+	 *
+	 * @param numPages the number of pages to allocate.
+	 * @return the physical page numbers, or <tt>null</tt> if there are not
+	 * enough free pages.
+	 */
+	public int[] allocatePages(int numPages) {
+		int[] ppns = new int[numPages];
 
-		// Protect other processess from allocating pages
 		pageAlLock.acquire();
+		boolean allocated = frameAllocator.allocate(ppns, numPages);
+		pageAlLock.release();
 
-		// Check if # free pages >= num pages
-		if (freePPT.size() >= numPages) {
-			pageTable = new TranslationEntry[numPages];
-			for (int i = 0; i < numPages; i++) {
-				TranslationEntry allocatedPage = freePPT.remove();
-				pageTable[i] = allocatedPage;
-				pageTable[i].valid = true;
-			}
-
-		}
+		return allocated ? ppns : null;
+	}
 
+	/**
+	 * Allocate one physical page.
+	 *
+	 * @return the physical page number, or -1 if there are no free pages.
+	 */
+	public int allocatePage() {
+		pageAlLock.acquire();
+		int ppn = frameAllocator.allocate();
 		pageAlLock.release();
 
-		return pageTable;
+		return ppn;
+	}
+
+	/**
+	 * Free one physical page.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void deallocatePage(int ppn) {
+		pageAlLock.acquire();
+		frameAllocator.free(ppn);
+		pageAlLock.release();
+	}
 
+	/**
+	 * Allocate a range of contiguous physical pages.
+	 *
+	 * @param numPages the number of pages to allocate.
+	 * @return the first physical page number of the range, or -1 if there is
+	 * no free range long enough.
+	 *
+	 * @see nachos.userprog.FrameAllocator#allocateContiguous
+	 */
+	public int allocateContiguousPages(int numPages) {
+		pageAlLock.acquire();
+		int ppn = frameAllocator.allocateContiguous(numPages);
+		pageAlLock.release();
 
+		return ppn;
 	}
 
+	/**
+	 * Free the physical pages that a page table maps. Invalid entries are
+	 * skipped.
+	 *
+	 * @param pageTable the page table whose pages to free.
+	 */
 	public void deallocatePages(TranslationEntry[] pageTable) {
-
 		pageAlLock.acquire();
-		
+
 		for (int i = 0; i < pageTable.length; i++) {
-			freePPT.add(pageTable[i]);
-			pageTable[i].valid = false;
-			pageTable[i].vpn = 0;
+			if (pageTable[i] != null && pageTable[i].valid) {
+				frameAllocator.free(pageTable[i].ppn);
+				pageTable[i].valid = false;
+			}
 		}
-		
+
 		pageAlLock.release();
+	}
 
+	/**
+	 * Free a range of contiguous physical pages.
+	 *
+	 * @param firstPPN the first physical page number of the range.
+	 * @param numPages the number of pages in the range.
+	 */
+	public void deallocateContiguousPages(int firstPPN, int numPages) {
+		pageAlLock.acquire();
+		frameAllocator.free(firstPPN, numPages);
+		pageAlLock.release();
 	}
+
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** Globally accessible reference to the executable header cache. */
+	public static CoffCache coffCache;
+
+	/** Globally accessible reference to the process table. */
+	public static ProcessTable processTable;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
-	private LinkedList<TranslationEntry> freePPT = new LinkedList<TranslationEntry>();
-	
+	/** Tracks the free physical pages; guarded by <tt>pageAlLock</tt>. */
+	private FrameAllocator frameAllocator;
+
 	private Lock pageAlLock;
 }
@@ -4,7 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.vm.VMProcess;
 
-import java.nio.ByteBuffer;
 import java.util.*;
 
 import java.io.EOFException;
@@ -26,20 +25,15 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
-		pid = numProcess++;
-        numLiveProcess++;
-        pidProcTable.put(pid, this);
-
 		int numPhysPages = Machine.processor().getNumPhysPages();
 		pageTable = new TranslationEntry[numPhysPages];
 		for (int i = 0; i < numPhysPages; i++)
 			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
 
-		fdFileTable = new HashMap<Integer, OpenFile>();
-		nameFdTable = new HashMap<String, Integer>();
-
-		fdFileTable.put(0, UserKernel.console.openForReading());
-		fdFileTable.put(1, UserKernel.console.openForWriting());
+		files = new FileTable(2 + Config.getInteger("UserProcess.maxOpenFiles",
+				16));
+		files.add(UserKernel.console.openForReading());
+		files.add(UserKernel.console.openForWriting());
 	}
 
 	/**
@@ -68,16 +62,34 @@ public class UserProcess {
 	}
 
 	/**
-	 * Execute the specified program with the specified arguments. Attempts to
-	 * load the program, and then forks a thread to run it.
+	 * Execute the specified program with the specified arguments. Gives this
+	 * process an ID in the process table, attempts to load the program, and
+	 * then forks a thread to run it.
 	 *
 	 * @param name the name of the file containing the executable.
 	 * @param args the arguments to pass to the executable.
 	 * @return <tt>true</tt> if the program was successfully executed.
 	 */
 	public boolean execute(String name, String[] args) {
-		if (!load(name, args))
+		ProcessTable table = UserKernel.processTable;
+
+		table.getLock().acquire();
+		pid = table.add(this);
+		table.getLock().release();
+
+		if (pid == -1) {
+			Lib.debug(dbgProcess, "\tprocess table full");
 			return false;
+		}
+
+		if (!load(name, args)) {
+			table.getLock().acquire();
+			table.remove(pid);
+			table.getLock().release();
+			return false;
+		}
+
+		numLiveProcess++;
 
 		uThread = new UThread(this);
 		uThread.setName(name).fork();
@@ -158,76 +170,7 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		if (data == null) return 0;
-
-		byte[] memory = Machine.processor().getMemory();
-
-		int vpn = Processor.pageFromAddress(vaddr);
-		int vpnOffset = Processor.offsetFromAddress(vaddr);
-
-        TranslationEntry entry = null;
-
-		try {
-			entry = getTranslationEntry(vpn);
-			entry.used = true;
-		}
-		catch(ArrayIndexOutOfBoundsException e) {
-		    System.out.println("IndexOutOfBoundsException: " + e.getMessage());
-		    return 0;
-        }
-
-        // Initial address in memory
-		int address = entry.ppn * pageSize + vpnOffset;
-
-		if (entry == null)
-			return 0;
-
-		int amount = 0;
-		int bufOffset = offset; // offset of buffer if we need to start somewhere in mid
-		int pageOffset = vpnOffset;
-		int bytesToWrite = length;
-
-		while (amount < length) {
-			// The data we wish to write will extend off the size of the page
-			if (pageOffset + bytesToWrite > pageSize) {
-
-				// Need to save the context of all data to account for the next page on the table
-				int diff = pageSize - pageOffset;
-
-				// Read all the way to the end of the page table
-				System.arraycopy(memory, address, data, offset, diff);
-
-				// Update the data for the next page
-				amount = amount + diff;
-				bufOffset = bufOffset + diff; // Where to start in the buffer
-				bytesToWrite = length - amount;
-				vpn = vpn + 1; // GO to next page table
-
-				if (vpn >= pageTable.length) break;
-
-				else {
-
-					// Set to un-used
-					pageTable[vpn - 1].used = false;
-					entry = pageTable[vpn];
-					if (!entry.valid)  break;
-
-					entry.used = true;
-					pageOffset = 0;
-					address = entry.ppn * pageSize;
-				}
-			}
-			else {
-				// Base case - just copy array and increase amount to length
-				System.arraycopy(memory, address, data, bufOffset, bytesToWrite);
-				amount = amount + bytesToWrite;
-				bufOffset = bufOffset + bytesToWrite;
-				pageTable[vpn].used = false;
-			}
-
-		}
-
-		return amount;
+		return copier.read(vaddr, data, offset, length);
 	}
 
 	/**
@@ -260,84 +203,56 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
-		int vpn = Processor.pageFromAddress(vaddr);
-		int vpnOffset = Processor.offsetFromAddress(vaddr);
-
-		TranslationEntry entry = null;
-
-		try {
-			entry = getTranslationEntry(vpn);
-			entry.used = true;
-		}
-		catch(ArrayIndexOutOfBoundsException e) {
-			System.out.println("IndexOutOfBoundsException: " + e.getMessage());
-			return 0;
-		}
-
-
-		if (entry == null) return 0;
-
-		// If entry is read only, return 0
-		if (entry.readOnly) return 0;
-
-		entry.used = true;
-		int address = entry.ppn*pageSize + vpnOffset;
-
-		// Initialize data to update
-		int amount = 0;
-		int bufOffset = offset; // offset of buffer if we need to start somewhere in mid
-		int pageOffset = vpnOffset;
-		int bytesToWrite = length;
-
-		// Same as readvirtual memory, just in other direction
-		while (amount < length) {
-			if (pageOffset + bytesToWrite > pageSize) {
-				int diff = pageSize - pageOffset;
-				System.arraycopy(data, bufOffset, memory, address, diff);
-
-				// Update the new values for the next page
-				amount = amount + diff;
-				bufOffset = bufOffset + diff;
-				bytesToWrite = length - amount;
-				vpn = vpn + 1;
-
-				// Check if the vpn > pageTable.length
-				if (vpn >= pageTable.length) break;
-				else {
-					// Set to un-used
-					pageTable[vpn - 1].used = false;
-					entry = pageTable[vpn];
-
-					// If entry is not valid, break
-					if (!entry.valid)  break;
-					entry.used = true;
-					pageOffset = 0; // Move on to next page
-					address = entry.ppn * pageSize;
-
-				}
-
-			}
-
-			else {
-				// Base case - just copy array and increase amount to length
-				System.arraycopy(data, bufOffset, memory, address, bytesToWrite);
-				amount = amount + bytesToWrite;
-				bufOffset = bufOffset + bytesToWrite;
-				pageTable[vpn].used = false;
-			}
+		return copier.write(vaddr, data, offset, length);
+	}
 
-		}
+	/**
+	 * Return the translation for a page of this process's virtual memory.
+	 * <tt>readVirtualMemory()</tt> and <tt>writeVirtualMemory()</tt> resolve
+	 * every page through this method, so subclasses that manage their own
+	 * translations can make the page accessible here.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param write <tt>true</tt> if the page is about to be written.
+	 * @return the translation entry of the page, or <tt>null</tt> if the page
+	 * is outside this process's address space.
+	 */
+	protected TranslationEntry getTranslationEntry(int vpn, boolean write) {
+		if (vpn < 0 || vpn >= pageTable.length)
+			return null;
 
+		return pageTable[vpn];
+	}
 
+	/**
+	 * Called when a system call creates, truncates, writes, or removes a
+	 * file, so that anything cached from the file can be discarded. Discards
+	 * the file's cached executable headers; subclasses that cache more should
+	 * call this too.
+	 *
+	 * @param name the name of the file.
+	 */
+	protected void fileModified(String name) {
+		UserKernel.coffCache.invalidate(name);
+	}
 
-		return amount;
+	/**
+	 * Called just before a file descriptor is closed, by <tt>close()</tt> or
+	 * because the process is exiting, while the file is still open.
+	 *
+	 * @param fd the file descriptor.
+	 */
+	protected void fileClosing(int fd) {
 	}
 
-	public TranslationEntry getTranslationEntry(int vpn) {
-        //System.out.println("vpn:" +pageTable[vpn].vpn + "--> ppn:" + pageTable[vpn].ppn);
-        return pageTable[vpn];
+	/**
+	 * Return the file or stream a file descriptor refers to.
+	 *
+	 * @param fd the file descriptor.
+	 * @return the open file, or <tt>null</tt> if the descriptor is not open.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+		return files.get(fd);
 	}
 
 	/**
@@ -359,8 +274,10 @@ public class UserProcess {
 			return false;
 		}
 
+		executableName = name;
+
 		try {
-			coff = new Coff(executable);
+			coff = UserKernel.coffCache.load(executable);
 		}
 		catch (EOFException e) {
 			executable.close();
@@ -441,13 +358,18 @@ public class UserProcess {
 			return false;
 		}
 
-		pageTable = ((UserKernel) Kernel.kernel).allocatePages(numPages);
-		if (pageTable == null)
-		    return false;
-		for (int i = 0; i < pageTable.length; i++) {
-			pageTable[i].vpn = i;
+		int[] ppns = ((UserKernel) Kernel.kernel).allocatePages(numPages);
+		if (ppns == null) {
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
 		}
 
+		pageTable = new TranslationEntry[numPages];
+		for (int i = 0; i < numPages; i++)
+			pageTable[i] = new TranslationEntry(i, ppns[i], true, false, false,
+					false);
+
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -456,17 +378,13 @@ public class UserProcess {
 					+ " section (" + section.getLength() + " pages)");
 
 
-			if (section.isReadOnly()) {
-				pageTable[s].readOnly = true;
-			}
-
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
+				pageTable[vpn].readOnly = section.isReadOnly();
+
 				// loadPage into physical address given by pageTable
 				section.loadPage(i, pageTable[vpn].ppn);
-
-
 			}
 		}
 
@@ -514,7 +432,7 @@ public class UserProcess {
 	private int handleHalt() {
 		// the first process in the system. If another process attempts to invoke halt, the system call should be ignored and return immediately.
 		if (pid == 1)
-			Machine.halt();
+			Kernel.kernel.terminate();
 
         System.err.println("Halt() called by non-root process!");
 		//Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -530,24 +448,17 @@ public class UserProcess {
      * Returns the new file descriptor, or -1 if an error occurred.
      */
 	private int handleOpen(int nameVA){
-		int fd; // file descriptor
-		for (fd = 2; fd < maxNumOpenFile; fd ++) {
-			if (!fdFileTable.containsKey(fd)) {
-				String fileName = readVirtualMemoryString(nameVA, maxFileNameLength);
-				if (fileName == null || fileName.length() > 256){
-					return -1;
-				}
-				OpenFile file = ThreadedKernel.fileSystem.open(fileName, false);
-				if (file == null){
-					return -1;
-				}
-				fdFileTable.put(fd, file);
-				nameFdTable.put(fileName, fd);
-				//System.out.println(fileName + "is created/opened successfully. The fd is " + fd);
-				return fd;
-			}
+		if (files.isFull())
+			return -1;
+		String fileName = readVirtualMemoryString(nameVA, maxFileNameLength);
+		if (fileName == null || fileName.length() > 256){
+			return -1;
 		}
-		return -1;
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, false);
+		if (file == null){
+			return -1;
+		}
+		return files.add(file);
 	}
 
     /**
@@ -560,24 +471,18 @@ public class UserProcess {
      * Returns the new file descriptor, or -1 if an error occurred.
      */
 	private int handleCreate(int nameVA){
-		int fd;
-		for (fd = 2; fd < maxNumOpenFile; fd ++) {
-			if (!fdFileTable.containsKey(fd)) {
-				String fileName = readVirtualMemoryString(nameVA, maxFileNameLength);
-				if (fileName == null || fileName.length() > 256){
-					return -1;
-				}
-				OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
-				if (file == null){
-					return -1;
-				}
-				fdFileTable.put(fd, file);
-				nameFdTable.put(fileName, fd);
-				//System.out.println(fileName + "is created/opened successfully. The fd is " + fd);
-				return fd;
-			}
+		if (files.isFull())
+			return -1;
+		String fileName = readVirtualMemoryString(nameVA, maxFileNameLength);
+		if (fileName == null || fileName.length() > 256){
+			return -1;
 		}
-		return -1;
+		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+		if (file == null){
+			return -1;
+		}
+		fileModified(fileName);
+		return files.add(file);
 	}
 
 
@@ -602,89 +507,126 @@ public class UserProcess {
      * no more data is available.
      */
 	private int handleRead(int fd, int memVA, int count) {
-		byte[] localBuf = new byte[localBufferSize];
-		if (!fdFileTable.containsKey(fd))
+		OpenFile file = files.get(fd);
+		if (file == null)
 			return -1;
-		OpenFile file = fdFileTable.get(fd);
-		int actualCount;
+		if (count < 0)
+			return -1;
+		byte[] memory = Machine.processor().getMemory();
 		int totalRead = 0;
-		int writePos = memVA;
 
-		do {
-			actualCount = file.read(localBuf, 0, localBufferSize);
-			if (actualCount == -1){
-				return -1;
+		while (totalRead < count) {
+			int writePos = memVA + totalRead;
+			int resolved = copier.resolve(writePos, count - totalRead, true);
+
+			if (resolved == 0) {
+				copier.release();
+
+				// not directly accessible; let writeVirtualMemory() try a page
+				int chunk = Math.min(pageSize
+						- Processor.offsetFromAddress(writePos), count
+						- totalRead);
+				int actualCount = file.read(getTransferBuffer(), 0, chunk);
+				if (actualCount == -1)
+					return -1;
+				if (writeVirtualMemory(writePos, transferBuffer, 0,
+						actualCount) < actualCount)
+					return -1;
+				totalRead += actualCount;
+				if (actualCount < chunk)
+					return totalRead;
+				continue;
+			}
+
+			// read straight into the frames behind the buffer
+			try {
+				for (int run = 0; run < copier.getNumRuns(); run++) {
+					int length = copier.getRunLength(run);
+					int actualCount = file.read(memory,
+							copier.getRunAddress(run), length);
+					if (actualCount == -1)
+						return -1;
+					totalRead += actualCount;
+					if (actualCount < length)
+						return totalRead;
+				}
 			}
-			if (actualCount <= count) {
-				count -= actualCount;
-			} else {
-				actualCount = count;
-				count = 0;
+			finally {
+				copier.release();
 			}
-			writeVirtualMemory(writePos, localBuf, 0, actualCount);
-			totalRead += actualCount;
-			writePos += actualCount;
 		}
-		while (actualCount == localBufferSize);
+
 		return totalRead;
 	}
-		//Use fileTable[fd].read() to read from file to a local buffer of limited size
-		///Then write it into the user inputted buffer
-
 
-
-    /**
-     * Attempt to write up to count bytes from buffer to the file or stream
-     * referred to by fileDescriptor. write() can return before the bytes are
-     * actually flushed to the file or stream. A write to a stream can block,
-     * however, if kernel queues are temporarily full.
-     *
-     * On success, the number of bytes written is returned (zero indicates nothing
-     * was written), and the file position is advanced by this number. It IS an
-     * error if this number is smaller than the number of bytes requested. For
-     * disk files, this indicates that the disk is full. For streams, this
-     * indicates the stream was terminated by the remote host before all the data
-     * was transferred.
-     *
-     * On error, -1 is returned, and the new file position is undefined. This can
-     * happen if fileDescriptor is invalid, if part of the buffer is invalid, or
-     * if a network stream has already been terminated by the remote host.
-     */
 	private int handleWrite(int fd, int memVA, int count){
-		byte[] localBuf = new byte[localBufferSize];
-		if (!fdFileTable.containsKey(fd))
+		OpenFile file = files.get(fd);
+		if (file == null)
 			return -1;
 		if (count < 0)
 		    return -1;
 		if (count == 0)
 		    return 0;
-		OpenFile file = fdFileTable.get(fd);
-		int actualCount;
+		byte[] memory = Machine.processor().getMemory();
 		int totalWrite = 0;
-		int readPos = memVA;
-		int leftToWrite = count;
-		do {
-			actualCount = readVirtualMemory(readPos, localBuf, 0, localBufferSize);
-			if (actualCount <= leftToWrite) {
-				leftToWrite -= actualCount;
-			} else {
-				actualCount = leftToWrite;
-				leftToWrite = 0;
+
+		// console streams belong to no file system
+		if (file.getFileSystem() != null)
+			fileModified(file.getName());
+
+		while (totalWrite < count) {
+			int readPos = memVA + totalWrite;
+			int resolved = copier.resolve(readPos, count - totalWrite, false);
+
+			if (resolved == 0) {
+				copier.release();
+
+				// not directly accessible; let readVirtualMemory() try a page
+				int chunk = Math.min(pageSize
+						- Processor.offsetFromAddress(readPos), count
+						- totalWrite);
+				int actualCount = readVirtualMemory(readPos,
+						getTransferBuffer(), 0, chunk);
+				if (actualCount < chunk)
+					return -1;
+				if (file.write(transferBuffer, 0, actualCount) < actualCount)
+					return -1;
+				totalWrite += actualCount;
+				continue;
 			}
 
-			if (file.write(localBuf, 0, actualCount) == -1)
-				return -1;
-			totalWrite += actualCount;
-			readPos += actualCount;
-		}
-		while (actualCount == localBufferSize);
-		if (totalWrite == count) {
-			return totalWrite;
+			// write straight from the frames behind the buffer
+			try {
+				for (int run = 0; run < copier.getNumRuns(); run++) {
+					int length = copier.getRunLength(run);
+					if (file.write(memory, copier.getRunAddress(run),
+							length) < length)
+						return -1;
+					totalWrite += length;
+				}
+			}
+			finally {
+				copier.release();
+			}
 		}
-		else
-			return -1;
+
+		return totalWrite;
 	}
 
+	/**
+	 * Return this process's buffer for file transfers that cannot go
+	 * directly to or from its frames, allocating it the first time.
+	 *
+	 * @return a buffer one page long.
+	 */
+	private byte[] getTransferBuffer() {
+		if (transferBuffer == null)
+			transferBuffer = new byte[pageSize];
+
+		return transferBuffer;
+	}
+
+
     /**
      * Close a file descriptor, so that it no longer refers to any file or stream
      * and may be reused.
@@ -703,14 +645,13 @@ public class UserProcess {
      * Returns 0 on success, or -1 if an error occurred.
      */
 	 private int handleClose(int fd){
-	     if (!fdFileTable.containsKey(fd))
-	         return -1;
-        OpenFile file = fdFileTable.get(fd);
+        OpenFile file = files.get(fd);
+        if (file == null)
+            return -1;
+        fileClosing(fd);
         file.close();
 
-        fdFileTable.remove(fd);
-        //nameFdTable.values().remove(fd); //delete nameFdTable entry
-        //System.out.println(fd + "is closed successfully.");
+        files.remove(fd);
         return 0;
 	 }
 
@@ -728,26 +669,16 @@ public class UserProcess {
      */
 	 private int handleUnlink(int fileNameVR){
 	 	String fileName = readVirtualMemoryString(fileNameVR, maxFileNameLength);
-	 	if (nameFdTable.containsKey(fileName)) {
-	 		int fd = nameFdTable.get(fileName);
-	 		fdFileTable.remove(fd);
-	 		nameFdTable.remove(fileName);
-	 	}
-	 	if (ThreadedKernel.fileSystem.remove(fileName))
+	 	if (fileName == null)
+	 		return -1;
+	 	// descriptors still open on the file stay usable until closed
+	 	if (ThreadedKernel.fileSystem.remove(fileName)) {
+	 		fileModified(fileName);
 	 		return 0;
+	 	}
 	 	else
 	 		return -1;
 	 }
-	 public void setPid(int pid){
-	 	this.pid = pid;
-	 }
-	 public void setPPid(int pPid){
-	 	this.pPid = pPid;
-	 }
-	 public void addChildProcess(int cpid){
-		cPids.add(cpid);
-	 }
-
 	/**
 	 * Execute the program stored in the specified file, with the specified
 	 * arguments, in a new child process. The child process has a new unique
@@ -789,15 +720,17 @@ public class UserProcess {
 
 		 UserProcess process = newUserProcess();
 
-         int cPid = process.pid;
-		 process.setPPid(pid);
-		 addChildProcess(cPid);
-
+		 // the child may run, and exit, before execute() returns
+		 process.parent = this;
 		 if (process.execute(fileName, argv) == false)
 		     return -1;
 
-		 //KThread.currentThread().finish();
-		 return cPid;
+		 ProcessTable table = UserKernel.processTable;
+		 table.getLock().acquire();
+		 children.add(process);
+		 table.getLock().release();
+
+		 return process.pid;
  	}
 
 	/**
@@ -818,28 +751,36 @@ public class UserProcess {
 
     //int join(int pid, int *status);
 	private int handleJoin(int cPid, int statusVR){
+		ProcessTable table = UserKernel.processTable;
+		table.getLock().acquire();
+
 		//If processID does not refer to a child  process of the current process, returns -1.
-		if (!cPids.contains(cPid))
+		UserProcess child = table.get(cPid);
+		if (child == null || child.parent != this) {
+			table.getLock().release();
 			return -1;
+		}
 
-        Integer status = pidProcTable.get(cPid).exitStatus;
-        if (status != null){
-            System.out.println("child has already exited when calling join, the status is" + status);
-        }
-        else{
-            System.out.println("Join");
-            pidProcTable.get(cPid).uThread.join();
+        Integer status = child.exitStatus;
+        if (status == null){
+            Lib.debug(dbgProcess, "\tjoining process " + cPid);
+            while (child.exitStatus == null)
+                child.exitCondition.sleep();
             //Get child status and write it to *status
-            status = pidProcTable.get(cPid).exitStatus;
+            status = child.exitStatus;
         }
-        if (status == null) {
-            System.out.println("The join failed.");
-            return -1;
+
+        // disown and reap the child, unless another joiner already has
+        if (child.parent == this) {
+            children.remove(child);
+            child.parent = null;
+            table.remove(child.pid);
         }
-		byte [] statusByteArr = ByteBuffer.allocate(4).putInt(status).array();
-		System.out.println("The status of the child" + status + statusByteArr);
-		// not sure the length of the status
-		writeVirtualMemory(statusVR, statusByteArr);
+        table.getLock().release();
+		Lib.debug(dbgProcess, "\tprocess " + cPid + " exited with status "
+				+ status);
+		// the status is a little-endian int in user memory
+		writeVirtualMemory(statusVR, Lib.bytesFromInt(status));
 
         //If the child exited as a result of an unhandled exception, returns 0. If the child exited normally, returns 1.
         return (status == Integer.MIN_VALUE) ? 0 : 1 ;
@@ -869,30 +810,38 @@ public class UserProcess {
 	private int handleExit(int status){
 //		void exit(int status)
         closeAllFiles();
-		fdFileTable.clear();
-		nameFdTable.clear();
-
-		//System.out.println("Total key value pairs in HashMap after cleanning are : " + fdFileTable.size() + fdTable.size());
 
 		unloadSections();
 		coff.close();
 
+		ProcessTable table = UserKernel.processTable;
+		table.getLock().acquire();
+
         //save the status for parent;
 		exitStatus = status;
 
-		// Any children of the process no longer have a parent process.
-//		for (int cPid : cPids) {
-//		    if (pidProcTable.containsKey(cPid))
-//                pidProcTable.get(cPid).setPPid(0);
-//        }
+		// Any children of the process no longer have a parent process, so
+		// those that have already exited can never be joined
+		for (UserProcess child : children) {
+			child.parent = null;
+			if (child.exitStatus != null)
+				table.remove(child.pid);
+		}
+		children.clear();
+
+		//Wake up parent if sleeping, or reap this process if it has none
+		if (parent != null)
+			exitCondition.wakeAll();
+		else
+			table.remove(pid);
+
+		table.getLock().release();
 
 		//In case of last process, call kernel.kernel.terminate()
-		//pidProcTable.remove(pid);
         numLiveProcess--;
 		if (numLiveProcess == 0)
 			Kernel.kernel.terminate();
 
-		//Wake up parent if sleeping
         //Close Kthread by calling Kthread.finish()
 		uThread.finish();
 
@@ -1028,17 +977,32 @@ public class UserProcess {
 	}
 
     private void closeAllFiles(){
-        for (Integer key: fdFileTable.keySet()){
-            fdFileTable.get(key).close();
+        for (int fd = files.nextOpen(0); fd != -1; fd = files.nextOpen(fd + 1)){
+            fileClosing(fd);
+            files.remove(fd).close();
         }
     }
 
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name of the file <tt>coff</tt> was loaded from. */
+	protected String executableName;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
+	/** Bounces file data for pages that cannot be transferred directly. */
+	private byte[] transferBuffer = null;
+
+	/** Copies data in and out of this process's virtual memory. */
+	protected VirtualMemoryCopier copier = new VirtualMemoryCopier() {
+		protected TranslationEntry translate(int vpn, boolean write,
+				boolean pin) {
+			return getTranslationEntry(vpn, write);
+		}
+	};
+
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
@@ -1053,27 +1017,31 @@ public class UserProcess {
 
 	private static final char dbgProcess = 'a';
 
-	private Map<Integer, OpenFile> fdFileTable; //Open File Descriptor Table 16 + 2
-
-	private Map<String, Integer> nameFdTable; //File name to fd
+	/**
+	 * The open file descriptors: stdin, stdout and up to
+	 * <tt>UserProcess.maxOpenFiles</tt> files.
+	 */
+	private FileTable files;
 
     private static final int maxFileNameLength = 256;
 
-    private static final int localBufferSize = 1024;
-
-    private static final int maxNumOpenFile = 2 + 16;
-
     private static final int maxArgvLength = 4;
 
-	private static int numProcess = 1;
-
+	/** This process's ID in the process table. */
 	private int pid;
 
-	private int pPid = 0;
+	/**
+	 * The process that may join this one, or <tt>null</tt> if it has none.
+	 * Guarded by the process table's lock, as are the fields below.
+	 */
+	private UserProcess parent = null;
 
-	private LinkedList<Integer>	cPids = new LinkedList<>();
+	/** The children that have not been joined. */
+	private HashSet<UserProcess> children = new HashSet<UserProcess>();
 
-	private static Map<Integer, UserProcess> pidProcTable = new HashMap<>(); //pid -> Process
+	/** Signalled when this process exits. */
+	private Condition2 exitCondition = new Condition2(
+			UserKernel.processTable.getLock());
 
 	private UThread uThread;
 
@@ -0,0 +1,480 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Copies data between a process's virtual memory and the kernel.
+ *
+ * <p>
+ * A transfer to or from a file happens in two steps. First,
+ * <tt>resolve()</tt> translates the whole virtual range, page by page, and
+ * merges pages that sit in consecutive physical frames into runs. Translation
+ * stops at the first page that cannot be accessed, so the runs always
+ * describe a prefix of the range. Then each run is handed to a file as one
+ * transfer, or exposed as a <tt>ByteBuffer</tt> over main memory.
+ *
+ * <p>
+ * A copy to or from a kernel array gains nothing from runs, since each page
+ * is one <tt>System.arraycopy()</tt> either way, so <tt>read()</tt> and
+ * <tt>write()</tt> copy each page as soon as it is translated, without
+ * building a run list or pinning anything.
+ *
+ * <p>
+ * Subclasses decide how a virtual page is translated, so that a process that
+ * pages on demand can bring pages in as they are resolved. Because the runs of
+ * a <tt>resolve()</tt> may be used while the caller blocks on I/O, the pages
+ * behind them are pinned until <tt>release()</tt> is called. A copier keeps
+ * its run arrays between calls and is not safe to share between threads.
+ */
+public abstract class VirtualMemoryCopier {
+	/**
+	 * Allocate a new copier over the processor's main memory.
+	 */
+	public VirtualMemoryCopier() {
+		memory = Machine.processor().getMemory();
+	}
+
+	/**
+	 * Return the translation for a virtual page, or <tt>null</tt> if the page
+	 * cannot be accessed. If <i>pin</i> is set, the page must stay in its frame
+	 * until <tt>unpin()</tt> is called for it; a subclass that cannot pin the
+	 * page should return <tt>null</tt>.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param write <tt>true</tt> if the page is about to be written.
+	 * @param pin <tt>true</tt> if the page must be pinned.
+	 * @return the translation entry of the page, or <tt>null</tt>.
+	 */
+	protected abstract TranslationEntry translate(int vpn, boolean write,
+			boolean pin);
+
+	/**
+	 * Allow a page pinned by <tt>translate()</tt> to be moved again. The
+	 * default does nothing.
+	 *
+	 * @param vpn the virtual page number.
+	 */
+	protected void unpin(int vpn) {
+	}
+
+	/**
+	 * Translate a range of virtual memory into runs of physical memory. Every
+	 * page resolved is marked used, and dirty if <i>write</i> is set, just as
+	 * the processor would mark it. Resolution stops at the first page that is
+	 * not valid, or that is read-only when <i>write</i> is set.
+	 *
+	 * <p>
+	 * The pages resolved stay pinned until <tt>release()</tt>, or the next
+	 * <tt>resolve()</tt>, is called.
+	 *
+	 * @param vaddr the first byte of virtual memory.
+	 * @param length the number of bytes.
+	 * @param write <tt>true</tt> if the range is about to be written.
+	 * @return the number of bytes, from the start of the range, that could be
+	 * resolved.
+	 */
+	public int resolve(int vaddr, int length, boolean write) {
+		Lib.assertTrue(length >= 0);
+
+		release();
+		if (vaddr < 0 || length == 0)
+			return 0;
+
+		int pageSize = Processor.pageSize;
+		int vpn = Processor.pageFromAddress(vaddr);
+		int pageOffset = Processor.offsetFromAddress(vaddr);
+		int amount = 0;
+
+		firstPinned = vpn;
+
+		while (amount < length) {
+			TranslationEntry entry = translate(vpn, write, true);
+			if (entry == null)
+				break;
+
+			numPinned++;
+
+			if (!entry.valid || (write && entry.readOnly))
+				break;
+
+			entry.used = true;
+			if (write)
+				entry.dirty = true;
+
+			int paddr = entry.ppn * pageSize + pageOffset;
+			int count = Math.min(pageSize - pageOffset, length - amount);
+
+			if (numRuns > 0
+					&& runAddress[numRuns - 1] + runLength[numRuns - 1] == paddr) {
+				runLength[numRuns - 1] += count;
+			}
+			else {
+				if (numRuns == runAddress.length)
+					growRuns();
+
+				runAddress[numRuns] = paddr;
+				runLength[numRuns] = count;
+				numRuns++;
+			}
+
+			amount += count;
+			vpn++;
+			pageOffset = 0;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Unpin the pages found by the last call to <tt>resolve()</tt>. Their runs
+	 * must not be used afterwards.
+	 */
+	public void release() {
+		for (int i = 0; i < numPinned; i++)
+			unpin(firstPinned + i);
+
+		numPinned = 0;
+		numRuns = 0;
+	}
+
+	/**
+	 * Return the number of physical runs found by the last call to
+	 * <tt>resolve()</tt>.
+	 *
+	 * @return the number of runs.
+	 */
+	public int getNumRuns() {
+		return numRuns;
+	}
+
+	/**
+	 * Return the physical address of the first byte of a run.
+	 *
+	 * @param run the run number.
+	 * @return the offset of the run in main memory.
+	 */
+	public int getRunAddress(int run) {
+		Lib.assertTrue(run >= 0 && run < numRuns);
+		return runAddress[run];
+	}
+
+	/**
+	 * Return the length of a run.
+	 *
+	 * @param run the run number.
+	 * @return the number of bytes in the run.
+	 */
+	public int getRunLength(int run) {
+		Lib.assertTrue(run >= 0 && run < numRuns);
+		return runLength[run];
+	}
+
+	/**
+	 * Transfer data from virtual memory to an array.
+	 *
+	 * @param vaddr the first byte of virtual memory to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to transfer.
+	 * @return the number of bytes successfully transferred.
+	 */
+	public int read(int vaddr, byte[] data, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+
+		return copy(vaddr, data, offset, length, false);
+	}
+
+	/**
+	 * Transfer data from an array to virtual memory.
+	 *
+	 * @param vaddr the first byte of virtual memory to write.
+	 * @param data the array containing the data to transfer.
+	 * @param offset the first byte to transfer from the array.
+	 * @param length the number of bytes to transfer.
+	 * @return the number of bytes successfully transferred.
+	 */
+	public int write(int vaddr, byte[] data, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+
+		return copy(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Translate and copy one page at a time. Each page is copied before the
+	 * next is translated, so a translation that pages in memory cannot take
+	 * away a page this copy still needs.
+	 */
+	private int copy(int vaddr, byte[] data, int offset, int length,
+			boolean write) {
+		release();
+		if (vaddr < 0)
+			return 0;
+
+		int pageSize = Processor.pageSize;
+		int vpn = Processor.pageFromAddress(vaddr);
+		int pageOffset = Processor.offsetFromAddress(vaddr);
+		int amount = 0;
+
+		while (amount < length) {
+			TranslationEntry entry = translate(vpn, write, false);
+			if (entry == null || !entry.valid || (write && entry.readOnly))
+				break;
+
+			entry.used = true;
+			if (write)
+				entry.dirty = true;
+
+			int paddr = entry.ppn * pageSize + pageOffset;
+			int count = Math.min(pageSize - pageOffset, length - amount);
+
+			if (write)
+				System.arraycopy(data, offset + amount, memory, paddr, count);
+			else
+				System.arraycopy(memory, paddr, data, offset + amount, count);
+
+			amount += count;
+			vpn++;
+			pageOffset = 0;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Return views of main memory covering as much of a virtual range as can
+	 * be resolved, one buffer per physical run. The buffers share main memory,
+	 * so they must not be used after <tt>release()</tt> is called.
+	 *
+	 * @param vaddr the first byte of virtual memory.
+	 * @param length the number of bytes.
+	 * @param write <tt>true</tt> if the caller will write through the buffers.
+	 * @return the buffers, in virtual address order.
+	 */
+	public ByteBuffer[] buffers(int vaddr, int length, boolean write) {
+		resolve(vaddr, length, write);
+
+		ByteBuffer[] buffers = new ByteBuffer[numRuns];
+		for (int run = 0; run < numRuns; run++)
+			buffers[run] = ByteBuffer.wrap(memory, runAddress[run],
+					runLength[run]).slice();
+
+		return buffers;
+	}
+
+	private void growRuns() {
+		int capacity = Math.max(initialRuns, 2 * runAddress.length);
+
+		runAddress = Arrays.copyOf(runAddress, capacity);
+		runLength = Arrays.copyOf(runLength, capacity);
+	}
+
+	/**
+	 * Check that reads and writes within a page and across pages, through a
+	 * page table whose frames are contiguous and through one whose frames are
+	 * scattered, copy the right bytes, and that a copy stops at the first page
+	 * that cannot be translated. Overwrites main memory, so it must run before
+	 * any process does.
+	 */
+	public static void selfTest() {
+		int pageSize = Processor.pageSize;
+		int numPages = Math.min(8, Machine.processor().getNumPhysPages());
+
+		TranslationEntry[] contiguous = pageTable(numPages, false);
+		TranslationEntry[] scattered = pageTable(numPages, true);
+		byte[] data = testData(numPages);
+
+		// start at page boundaries and at odd offsets within pages
+		int step = pageSize / 2 + 1;
+		int[] lengths = new int[] { 1, 64, pageSize, numPages * pageSize };
+		for (int s = 0; s < lengths.length; s++) {
+			int length = lengths[s];
+			for (int vaddr = 0; vaddr + length <= data.length; vaddr += step) {
+				check(contiguous, vaddr, data, length);
+				check(scattered, vaddr, data, length);
+			}
+		}
+
+		int last = (numPages - 1) * pageSize;
+		Lib.assertTrue(copier(scattered).write(last, data, 0, 2 * pageSize)
+				== pageSize);
+		Lib.assertTrue(copier(scattered).read(last + pageSize, data, 0, 1)
+				== 0);
+
+		Arrays.fill(Machine.processor().getMemory(), (byte) 0);
+	}
+
+	/**
+	 * Time reads and writes of 64 bytes within a page, and of 1, 4 and 64
+	 * pages starting mid-page, through a page table
+	 * whose frames are contiguous and through one whose frames are scattered,
+	 * and compare them with a copy that translates and copies one page at a
+	 * time. Overwrites main memory, so it must run before any process does.
+	 */
+	public static void benchmark() {
+		int pageSize = Processor.pageSize;
+		int numPages = Math.min(64, Machine.processor().getNumPhysPages());
+
+		TranslationEntry[] contiguous = pageTable(numPages, false);
+		TranslationEntry[] scattered = pageTable(numPages, true);
+		byte[] data = testData(numPages);
+
+		// a syscall argument, then copies of 1, 4 and 64 pages
+		int[] lengths = new int[] { 64, pageSize, 4 * pageSize,
+				64 * pageSize };
+
+		// warm up the JIT before timing anything
+		for (int s = 0; s < lengths.length; s++) {
+			int length = Math.min(lengths[s], numPages * pageSize);
+			time(copier(scattered), 0, data, length);
+			timePageAtATime(scattered, 0, data, length);
+		}
+
+		for (int s = 0; s < lengths.length; s++) {
+			int length = Math.min(lengths[s], numPages * pageSize);
+			// start mid-page so a copy of whole pages touches one more page
+			// when it can
+			int vaddr = (length <= (numPages - 1) * pageSize) ? pageSize / 2
+					: 0;
+
+			System.out.println("VirtualMemoryCopier: " + length + " bytes, "
+					+ "contiguous " + time(copier(contiguous), vaddr, data,
+							length)
+					+ " ns, scattered " + time(copier(scattered), vaddr, data,
+							length) + " ns, page at a time "
+					+ timePageAtATime(scattered, vaddr, data, length)
+					+ " ns per read+write");
+		}
+
+		Arrays.fill(Machine.processor().getMemory(), (byte) 0);
+	}
+
+	/**
+	 * Map the first <tt>numPages</tt> virtual pages to the first
+	 * <tt>numPages</tt> frames, in order or in reverse order.
+	 */
+	private static TranslationEntry[] pageTable(int numPages,
+			boolean scattered) {
+		TranslationEntry[] pageTable = new TranslationEntry[numPages];
+		for (int i = 0; i < numPages; i++)
+			pageTable[i] = new TranslationEntry(i, scattered ? numPages - 1 - i
+					: i, true, false, false, false);
+
+		return pageTable;
+	}
+
+	private static byte[] testData(int numPages) {
+		byte[] data = new byte[numPages * Processor.pageSize];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+
+		return data;
+	}
+
+	private static VirtualMemoryCopier copier(
+			final TranslationEntry[] pageTable) {
+		return new VirtualMemoryCopier() {
+			protected TranslationEntry translate(int vpn, boolean write,
+					boolean pin) {
+				return (vpn < pageTable.length) ? pageTable[vpn] : null;
+			}
+		};
+	}
+
+	/**
+	 * Write <tt>length</tt> bytes of <tt>data</tt> at <tt>vaddr</tt>, and
+	 * check that they read back the same, and that they landed in the frames
+	 * the page table maps them to.
+	 */
+	private static void check(TranslationEntry[] pageTable, int vaddr,
+			byte[] data, int length) {
+		VirtualMemoryCopier copier = copier(pageTable);
+		byte[] memory = Machine.processor().getMemory();
+		byte[] check = new byte[length];
+
+		Lib.assertTrue(copier.write(vaddr, data, 0, length) == length);
+		Lib.assertTrue(copier.read(vaddr, check, 0, length) == length);
+		for (int i = 0; i < length; i++) {
+			int address = vaddr + i;
+			int paddr = pageTable[Processor.pageFromAddress(address)].ppn
+					* Processor.pageSize + Processor.offsetFromAddress(address);
+
+			Lib.assertTrue(check[i] == data[i] && memory[paddr] == data[i]);
+		}
+	}
+
+	private static long time(VirtualMemoryCopier copier, int vaddr,
+			byte[] data, int length) {
+		byte[] check = new byte[length];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < benchRounds; i++) {
+			copier.write(vaddr, data, 0, length);
+			copier.read(vaddr, check, 0, length);
+		}
+
+		return (System.nanoTime() - start) / benchRounds;
+	}
+
+	/**
+	 * Copy the same way, but translate and copy each page on its own, the way
+	 * <tt>UserProcess</tt> used to.
+	 */
+	private static long timePageAtATime(TranslationEntry[] pageTable,
+			int vaddr, byte[] data, int length) {
+		byte[] memory = Machine.processor().getMemory();
+		byte[] check = new byte[length];
+		int pageSize = Processor.pageSize;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < benchRounds; i++) {
+			for (int pass = 0; pass < 2; pass++) {
+				int amount = 0;
+				while (amount < length) {
+					int address = vaddr + amount;
+					TranslationEntry entry = pageTable[Processor
+							.pageFromAddress(address)];
+					entry.used = true;
+
+					int paddr = entry.ppn * pageSize
+							+ Processor.offsetFromAddress(address);
+					int count = Math.min(pageSize
+							- Processor.offsetFromAddress(address), length
+							- amount);
+
+					if (pass == 0)
+						System.arraycopy(data, amount, memory, paddr, count);
+					else
+						System.arraycopy(memory, paddr, check, amount, count);
+
+					entry.used = false;
+					amount += count;
+				}
+			}
+		}
+
+		return (System.nanoTime() - start) / benchRounds;
+	}
+
+	private static final int benchRounds = 100000;
+
+	private static final int initialRuns = 4;
+
+	/** Main memory. */
+	private byte[] memory;
+
+	/** The physical address of each run found by <tt>resolve()</tt>. */
+	private int[] runAddress = new int[0];
+
+	/** The length of each run found by <tt>resolve()</tt>. */
+	private int[] runLength = new int[0];
+
+	private int numRuns = 0;
+
+	/** The pages pinned by the last <tt>resolve()</tt>. */
+	private int firstPinned, numPinned = 0;
+}
@@ -0,0 +1,72 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An approximation of least-recently-used replacement by aging. Each frame
+ * has a counter; every time a victim is needed, each counter is shifted right
+ * and the page's used bit is shifted in at the top, then cleared. The page
+ * with the smallest counter has gone unused for the longest, as far as the
+ * used bits can tell, and is evicted.
+ *
+ * <p>
+ * The counters age once per replacement rather than once per clock tick, so
+ * their history is measured in page faults.
+ */
+public class AgingPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+	}
+
+	public int findVictim(CoreMap coreMap) {
+		int numFrames = coreMap.getNumFrames();
+		int[] ages = getAges(numFrames);
+
+		int victim = -1;
+		for (int i = 0; i < numFrames; i++) {
+			// start after the last victim, so ties rotate through the frames
+			int ppn = (hand + i) % numFrames;
+			if (!coreMap.isMapped(ppn))
+				continue;
+
+			ages[ppn] >>>= 1;
+			if (coreMap.isUsed(ppn)) {
+				ages[ppn] |= newest;
+				coreMap.clearUsed(ppn);
+			}
+
+			// the counters are unsigned: a set top bit is the most recent use
+			if (coreMap.isEvictable(ppn) && (victim == -1
+					|| Integer.compareUnsigned(ages[ppn], ages[victim]) < 0))
+				victim = ppn;
+		}
+
+		if (victim != -1)
+			hand = (victim + 1) % numFrames;
+
+		return victim;
+	}
+
+	/**
+	 * Count a newly loaded page as just used, so it is not evicted before it
+	 * has had a chance to be used again.
+	 */
+	public void pageMapped(CoreMap coreMap, int ppn) {
+		getAges(coreMap.getNumFrames())[ppn] = newest;
+	}
+
+	private int[] getAges(int numFrames) {
+		if (ages == null)
+			ages = new int[numFrames];
+
+		return ages;
+	}
+
+	private static final int newest = 1 << 31;
+
+	private int[] ages = null;
+
+	private int hand = 0;
+}
@@ -0,0 +1,38 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock, or second-chance, replacement policy. A hand sweeps the frames
+ * in order; a page whose used bit is set has the bit cleared and is passed
+ * over, and the first page found with the bit clear is evicted.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+	}
+
+	public int findVictim(CoreMap coreMap) {
+		int numFrames = coreMap.getNumFrames();
+
+		// after one lap every used bit has been cleared
+		for (int i = 0; i <= 2 * numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (!coreMap.isEvictable(ppn))
+				continue;
+
+			if (!coreMap.isUsed(ppn))
+				return ppn;
+
+			coreMap.clearUsed(ppn);
+		}
+
+		return -1;
+	}
+
+	private int hand = 0;
+}
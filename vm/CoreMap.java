@@ -0,0 +1,206 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An inverted page table: for every physical frame, the process and virtual
+ * page it holds, or the shared executable page it holds, and how many times
+ * the frame is pinned.
+ *
+ * <p>
+ * The used and dirty bits of a frame are not copied here; the core map keeps
+ * a reference to the owner's page table entry, so it sees the bits the
+ * processor sets. A shared page is used if any process mapping it has used
+ * it, and is never dirty. A frame that is free, or that is still being
+ * filled, is not mapped and is never chosen for replacement.
+ */
+public class CoreMap {
+	/**
+	 * Allocate a new core map with every frame unowned.
+	 *
+	 * @param numFrames the number of physical frames.
+	 */
+	public CoreMap(int numFrames) {
+		owners = new VMProcess[numFrames];
+		entries = new TranslationEntry[numFrames];
+		textPages = new TextPageCache.Page[numFrames];
+		pinCounts = new int[numFrames];
+	}
+
+	/**
+	 * Return the number of physical frames.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getNumFrames() {
+		return owners.length;
+	}
+
+	/**
+	 * Record that a frame now holds a page.
+	 *
+	 * @param ppn the frame.
+	 * @param owner the process the page belongs to.
+	 * @param entry the owner's page table entry for the page.
+	 */
+	public void map(int ppn, VMProcess owner, TranslationEntry entry) {
+		Lib.assertTrue(!isMapped(ppn) && entry.ppn == ppn);
+
+		owners[ppn] = owner;
+		entries[ppn] = entry;
+	}
+
+	/**
+	 * Record that a frame now holds a shared page of an executable.
+	 *
+	 * @param ppn the frame.
+	 * @param page the page.
+	 */
+	public void mapTextPage(int ppn, TextPageCache.Page page) {
+		Lib.assertTrue(!isMapped(ppn) && page.getPPN() == ppn);
+
+		textPages[ppn] = page;
+	}
+
+	/**
+	 * Record that a frame no longer holds a page.
+	 *
+	 * @param ppn the frame, which must not be pinned.
+	 */
+	public void unmap(int ppn) {
+		Lib.assertTrue(isMapped(ppn) && pinCounts[ppn] == 0);
+
+		owners[ppn] = null;
+		entries[ppn] = null;
+		textPages[ppn] = null;
+	}
+
+	/**
+	 * Test whether a frame holds a page.
+	 *
+	 * @param ppn the frame.
+	 * @return <tt>true</tt> if the frame holds a private or a shared page.
+	 */
+	public boolean isMapped(int ppn) {
+		return owners[ppn] != null || textPages[ppn] != null;
+	}
+
+	/**
+	 * Return the process whose page a frame holds.
+	 *
+	 * @param ppn the frame.
+	 * @return the owner, or <tt>null</tt> if the frame holds no page.
+	 */
+	public VMProcess getOwner(int ppn) {
+		return owners[ppn];
+	}
+
+	/**
+	 * Return the page table entry of the page a frame holds.
+	 *
+	 * @param ppn the frame.
+	 * @return the entry, or <tt>null</tt> if the frame holds no private page.
+	 */
+	public TranslationEntry getEntry(int ppn) {
+		return entries[ppn];
+	}
+
+	/**
+	 * Return the shared executable page a frame holds.
+	 *
+	 * @param ppn the frame.
+	 * @return the page, or <tt>null</tt> if the frame holds no shared page.
+	 */
+	public TextPageCache.Page getTextPage(int ppn) {
+		return textPages[ppn];
+	}
+
+	/**
+	 * Test whether a frame holds a page that may be replaced.
+	 *
+	 * @param ppn the frame.
+	 * @return <tt>true</tt> if the frame is mapped and not pinned.
+	 */
+	public boolean isEvictable(int ppn) {
+		return isMapped(ppn) && pinCounts[ppn] == 0;
+	}
+
+	/**
+	 * Test whether the page in a frame has been used since its used bit was
+	 * last cleared.
+	 *
+	 * @param ppn the frame, which must be mapped.
+	 * @return the used bit of the page.
+	 */
+	public boolean isUsed(int ppn) {
+		if (textPages[ppn] != null)
+			return textPages[ppn].isUsed();
+
+		return entries[ppn].used;
+	}
+
+	/**
+	 * Clear the used bit of the page in a frame.
+	 *
+	 * @param ppn the frame, which must be mapped.
+	 */
+	public void clearUsed(int ppn) {
+		if (textPages[ppn] != null)
+			textPages[ppn].clearUsed();
+		else
+			entries[ppn].used = false;
+	}
+
+	/**
+	 * Test whether the page in a frame has been written since it was loaded.
+	 *
+	 * @param ppn the frame, which must be mapped.
+	 * @return the dirty bit of the page.
+	 */
+	public boolean isDirty(int ppn) {
+		return textPages[ppn] == null && entries[ppn].dirty;
+	}
+
+	/**
+	 * Prevent a frame from being replaced.
+	 *
+	 * @param ppn the frame, which must be mapped.
+	 */
+	public void pin(int ppn) {
+		Lib.assertTrue(isMapped(ppn));
+
+		if (pinCounts[ppn]++ == 0)
+			numPinned++;
+	}
+
+	/**
+	 * Undo one call to <tt>pin()</tt>.
+	 *
+	 * @param ppn the frame.
+	 */
+	public void unpin(int ppn) {
+		Lib.assertTrue(pinCounts[ppn] > 0);
+
+		if (--pinCounts[ppn] == 0)
+			numPinned--;
+	}
+
+	/**
+	 * Return the number of frames that are pinned.
+	 *
+	 * @return the number of pinned frames.
+	 */
+	public int getNumPinned() {
+		return numPinned;
+	}
+
+	private VMProcess[] owners;
+
+	private TranslationEntry[] entries;
+
+	private TextPageCache.Page[] textPages;
+
+	private int[] pinCounts;
+
+	private int numPinned = 0;
+}
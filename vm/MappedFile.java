@@ -0,0 +1,148 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A file mapped into a process's address space by <tt>mmap()</tt>. Page
+ * <i>i</i> of the mapping holds bytes <tt>i * pageSize</tt> onward of the
+ * file, and the last page is zero-filled past the end of the file. The
+ * mapping covers the file as long as it was when it was mapped.
+ *
+ * <p>
+ * Pages are transferred in runs: a run of consecutive pages is read or
+ * written with one file system call, through a kernel buffer, so the frames
+ * need not be contiguous.
+ */
+public class MappedFile {
+	/**
+	 * Allocate a new mapping.
+	 *
+	 * @param file the mapped file.
+	 * @param firstVPN the virtual page holding the start of the file.
+	 */
+	public MappedFile(OpenFile file, int firstVPN) {
+		this.file = file;
+		this.firstVPN = firstVPN;
+
+		length = file.length();
+		numPages = Lib.divRoundUp(length, pageSize);
+	}
+
+	/**
+	 * Return the mapped file.
+	 *
+	 * @return the file.
+	 */
+	public OpenFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Return the length of the mapped file, when it was mapped.
+	 *
+	 * @return the length in bytes.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Return the first virtual page of the mapping.
+	 *
+	 * @return the first virtual page number.
+	 */
+	public int getFirstVPN() {
+		return firstVPN;
+	}
+
+	/**
+	 * Return the number of pages in the mapping.
+	 *
+	 * @return the number of pages.
+	 */
+	public int getNumPages() {
+		return numPages;
+	}
+
+	/**
+	 * Test whether a virtual page is part of this mapping.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page is mapped from the file.
+	 */
+	public boolean contains(int vpn) {
+		return vpn >= firstVPN && vpn < firstVPN + numPages;
+	}
+
+	/**
+	 * Test whether any page has been written back to the file.
+	 *
+	 * @return <tt>true</tt> if the file has been changed through this
+	 * mapping.
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * Fill frames with a run of consecutive pages of the file.
+	 *
+	 * @param vpn the first page of the run.
+	 * @param ppns the frame to fill with each page.
+	 * @param count the number of pages.
+	 * @return <tt>true</tt> if the pages were read.
+	 */
+	public boolean read(int vpn, int[] ppns, int count) {
+		Lib.assertTrue(contains(vpn) && contains(vpn + count - 1));
+
+		int pos = (vpn - firstVPN) * pageSize;
+		byte[] buf = new byte[count * pageSize];
+		if (file.read(pos, buf, 0, Math.min(buf.length, length - pos)) == -1)
+			return false;
+
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(buf, i * pageSize, memory, ppns[i] * pageSize,
+					pageSize);
+			Machine.processor().invalidateDecodeCache(ppns[i]);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Write a run of consecutive pages back to the file. Nothing past the end
+	 * of the file is written.
+	 *
+	 * @param vpn the first page of the run.
+	 * @param ppns the frame holding each page.
+	 * @param count the number of pages.
+	 * @return <tt>true</tt> if the pages were written.
+	 */
+	public boolean write(int vpn, int[] ppns, int count) {
+		Lib.assertTrue(contains(vpn) && contains(vpn + count - 1));
+
+		int pos = (vpn - firstVPN) * pageSize;
+		byte[] buf = new byte[count * pageSize];
+
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0; i < count; i++)
+			System.arraycopy(memory, ppns[i] * pageSize, buf, i * pageSize,
+					pageSize);
+
+		modified = true;
+
+		int amount = Math.min(buf.length, length - pos);
+		return file.write(pos, buf, 0, amount) == amount;
+	}
+
+	private OpenFile file;
+
+	private int length;
+
+	private int firstVPN, numPages;
+
+	private boolean modified = false;
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,39 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which page to evict when a process needs a frame and none is free.
+ * The policy is set by <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * A policy sees the frames through the core map, which gives it the used and
+ * dirty bits of each page. Every method is called with the kernel's paging
+ * lock held.
+ */
+public abstract class ReplacementPolicy {
+	/**
+	 * Allocate a new replacement policy.
+	 */
+	public ReplacementPolicy() {
+	}
+
+	/**
+	 * Choose a frame to evict. The frame must be evictable.
+	 *
+	 * @param coreMap the core map.
+	 * @return the frame to evict, or -1 if no frame is evictable.
+	 *
+	 * @see nachos.vm.CoreMap#isEvictable
+	 */
+	public abstract int findVictim(CoreMap coreMap);
+
+	/**
+	 * Called after a page is loaded into a frame. The default does nothing.
+	 *
+	 * @param coreMap the core map.
+	 * @param ppn the frame.
+	 */
+	public void pageMapped(CoreMap coreMap, int ppn) {
+	}
+}
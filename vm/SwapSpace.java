@@ -0,0 +1,160 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A swap area on the machine's swap device, divided into page-sized slots.
+ * Free slots are tracked in a bitmap that grows with the area, so the area can
+ * be many times the size of physical memory. Runs of consecutive slots can be
+ * allocated together, so that several pages can be written in one transfer.
+ *
+ * <p>
+ * Transfers are serialized: a thread that starts one sleeps until the
+ * device's completion interrupt, and other threads wait for it to finish.
+ */
+public class SwapSpace {
+	/**
+	 * Allocate a new swap area on a swap device.
+	 *
+	 * @param device the swap device.
+	 */
+	public SwapSpace(SwapDevice device) {
+		this.device = device;
+
+		device.setInterruptHandler(new Runnable() {
+			public void run() {
+				transferDone.V();
+			}
+		});
+	}
+
+	/**
+	 * Allocate a run of consecutive slots, growing the area if no run of free
+	 * slots is long enough.
+	 *
+	 * @param count the number of slots.
+	 * @return the first slot of the run.
+	 */
+	public int allocate(int count) {
+		Lib.assertTrue(count > 0);
+
+		int first = -1, length = 0;
+		for (int slot = hint * 64; slot < numSlots; slot++) {
+			if (!isFree(slot)) {
+				length = 0;
+				continue;
+			}
+
+			if (length++ == 0)
+				first = slot;
+
+			if (length == count)
+				break;
+		}
+
+		if (length < count) {
+			// extend the run at the end of the area, or start a new one there
+			if (length == 0)
+				first = numSlots;
+
+			grow(first + count);
+		}
+
+		for (int slot = first; slot < first + count; slot++)
+			free[slot / 64] &= ~(1L << (slot % 64));
+
+		while (hint < free.length && free[hint] == 0)
+			hint++;
+
+		return first;
+	}
+
+	/**
+	 * Free a slot, discarding the page it holds.
+	 *
+	 * @param slot the slot number.
+	 */
+	public void free(int slot) {
+		Lib.assertTrue(slot >= 0 && slot < numSlots && !isFree(slot));
+
+		free[slot / 64] |= 1L << (slot % 64);
+		hint = Math.min(hint, slot / 64);
+	}
+
+	/**
+	 * Copy a slot into a frame of main memory. Does not return until the
+	 * transfer completes.
+	 *
+	 * @param slot the slot to read.
+	 * @param ppn the frame to fill.
+	 */
+	public void read(int slot, int ppn) {
+		Lib.assertTrue(slot >= 0 && slot < numSlots && !isFree(slot));
+
+		transferLock.acquire();
+		device.read(slot, new int[] { ppn }, 1);
+		transferDone.P();
+		transferLock.release();
+	}
+
+	/**
+	 * Copy frames of main memory into a run of consecutive slots, in one
+	 * transfer. Does not return until the transfer completes.
+	 *
+	 * @param firstSlot the first slot to write.
+	 * @param ppns the frame to copy into each slot.
+	 * @param count the number of slots.
+	 */
+	public void write(int firstSlot, int[] ppns, int count) {
+		Lib.assertTrue(firstSlot >= 0 && firstSlot + count <= numSlots);
+
+		transferLock.acquire();
+		device.write(firstSlot, ppns, count);
+		transferDone.P();
+		transferLock.release();
+	}
+
+	/**
+	 * Release the swap device.
+	 */
+	public void close() {
+		device.close();
+	}
+
+	private boolean isFree(int slot) {
+		return (free[slot / 64] & (1L << (slot % 64))) != 0;
+	}
+
+	/**
+	 * Grow the area to at least <tt>size</tt> slots. The new slots are free.
+	 */
+	private void grow(int size) {
+		if (size > free.length * 64) {
+			long[] bitmap = new long[Math.max((size + 63) / 64,
+					2 * free.length)];
+			System.arraycopy(free, 0, bitmap, 0, free.length);
+			free = bitmap;
+		}
+
+		for (int slot = numSlots; slot < size; slot++)
+			free[slot / 64] |= 1L << (slot % 64);
+
+		numSlots = size;
+	}
+
+	private SwapDevice device;
+
+	/** The number of slots the area has ever needed. */
+	private int numSlots = 0;
+
+	/** One bit per slot, set if the slot is free. */
+	private long[] free = new long[0];
+
+	/** No word of <tt>free</tt> below this one has a free slot. */
+	private int hint = 0;
+
+	private Lock transferLock = new Lock();
+
+	private Semaphore transferDone = new Semaphore(0);
+}
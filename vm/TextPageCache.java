@@ -0,0 +1,280 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * The resident read-only pages of executables, so that processes running the
+ * same executable can share one frame for each page of code and read-only
+ * data instead of each loading its own copy.
+ *
+ * <p>
+ * A page is identified by the name of its executable and its virtual page
+ * number, which determines the section and the page within it, since every
+ * section occupies its own range of virtual pages. A page stays in the cache
+ * while it is resident, even after the last process using it exits, so a
+ * program run over and over finds its code already in memory. When an
+ * executable is changed, its pages are dropped from the cache; processes
+ * already using them keep them until they exit.
+ *
+ * <p>
+ * The kernel's shared zero page is also a <tt>Page</tt>, but it belongs to
+ * no executable and is never in the cache.
+ */
+public class TextPageCache {
+	/**
+	 * Allocate a new, empty cache.
+	 */
+	public TextPageCache() {
+	}
+
+	/**
+	 * Find a resident page of an executable.
+	 *
+	 * @param name the name of the executable.
+	 * @param vpn the virtual page number of the page.
+	 * @return the page, or <tt>null</tt> if it is not in the cache.
+	 */
+	public Page lookup(String name, int vpn) {
+		HashMap<Integer, Page> pages = files.get(name);
+		if (pages == null)
+			return null;
+
+		return pages.get(vpn);
+	}
+
+	/**
+	 * Test whether any page of an executable is in the cache.
+	 *
+	 * @param name the name of the executable.
+	 * @return <tt>true</tt> if the executable has cached pages.
+	 */
+	public boolean contains(String name) {
+		return files.containsKey(name);
+	}
+
+	/**
+	 * Add a page that has just been loaded into a frame.
+	 *
+	 * @param name the name of the executable.
+	 * @param vpn the virtual page number of the page.
+	 * @param ppn the frame holding the page.
+	 * @return the new page, with no sharers.
+	 */
+	public Page insert(String name, int vpn, int ppn) {
+		HashMap<Integer, Page> pages = files.get(name);
+		if (pages == null) {
+			pages = new HashMap<Integer, Page>();
+			files.put(name, pages);
+		}
+
+		Lib.assertTrue(!pages.containsKey(vpn));
+
+		Page page = new Page(name, vpn, ppn);
+		pages.put(vpn, page);
+		return page;
+	}
+
+	/**
+	 * Remove a page whose frame is being taken away.
+	 *
+	 * @param page the page.
+	 */
+	public void remove(Page page) {
+		if (page.stale)
+			return;
+
+		HashMap<Integer, Page> pages = files.get(page.name);
+		pages.remove(page.vpn);
+		if (pages.isEmpty())
+			files.remove(page.name);
+	}
+
+	/**
+	 * Drop every page of an executable from the cache, and mark the pages
+	 * stale.
+	 *
+	 * @param name the name of the executable.
+	 * @return the pages that were dropped, or <tt>null</tt> if there were
+	 * none.
+	 */
+	public Page[] invalidate(String name) {
+		HashMap<Integer, Page> pages = files.remove(name);
+		if (pages == null)
+			return null;
+
+		Page[] stale = pages.values().toArray(new Page[pages.size()]);
+		for (Page page : stale)
+			page.stale = true;
+
+		return stale;
+	}
+
+	/**
+	 * A resident, read-only page shared by several processes, and the
+	 * processes that map it. A process may map the zero page at many virtual
+	 * pages, and is a sharer once for each, so the zero page can have a sharer
+	 * for every untouched page in the system; sharers are therefore indexed by
+	 * page table entry, and added or removed in constant time.
+	 */
+	public static class Page {
+		/**
+		 * Allocate a new page with no sharers.
+		 *
+		 * @param name the name of the executable, or <tt>null</tt> for the
+		 * zero page.
+		 * @param vpn the page's virtual page number in the executable.
+		 * @param ppn the frame holding the page.
+		 */
+		Page(String name, int vpn, int ppn) {
+			this.name = name;
+			this.vpn = vpn;
+			this.ppn = ppn;
+		}
+
+		/**
+		 * Return the frame holding this page.
+		 *
+		 * @return the frame.
+		 */
+		public int getPPN() {
+			return ppn;
+		}
+
+		/**
+		 * Test whether this page has been dropped from the cache because its
+		 * executable changed.
+		 *
+		 * @return <tt>true</tt> if the page is stale.
+		 */
+		public boolean isStale() {
+			return stale;
+		}
+
+		/**
+		 * Record that a process maps this page.
+		 *
+		 * @param process the process.
+		 * @param entry the process's page table entry for the page.
+		 */
+		public void addSharer(VMProcess process, TranslationEntry entry) {
+			Lib.assertTrue(!indices.containsKey(entry));
+
+			indices.put(entry, sharers.size());
+			sharers.add(process);
+			entries.add(entry);
+		}
+
+		/**
+		 * Record that a process no longer maps this page at one of its
+		 * virtual pages. Its use of the page is remembered, so the page does
+		 * not look idle because the process exited.
+		 *
+		 * @param process the process.
+		 * @param entry the process's page table entry that mapped the page.
+		 */
+		public void removeSharer(VMProcess process, TranslationEntry entry) {
+			Integer i = indices.remove(entry);
+			Lib.assertTrue(i != null && sharers.get(i) == process);
+
+			used |= entry.used;
+
+			// move the last sharer into the hole
+			int last = sharers.size() - 1;
+			if (i != last) {
+				sharers.set(i, sharers.get(last));
+				entries.set(i, entries.get(last));
+				indices.put(entries.get(i), i);
+			}
+			sharers.remove(last);
+			entries.remove(last);
+		}
+
+		/**
+		 * Return one of the processes that map this page.
+		 *
+		 * @param i the index of the sharer, less than
+		 * <tt>getNumSharers()</tt>.
+		 * @return the sharer.
+		 */
+		public VMProcess getSharer(int i) {
+			return sharers.get(i);
+		}
+
+		/**
+		 * Return the virtual page at which a sharer maps this page.
+		 *
+		 * @param i the index of the sharer, less than
+		 * <tt>getNumSharers()</tt>.
+		 * @return the virtual page number.
+		 */
+		public int getSharerVPN(int i) {
+			return entries.get(i).vpn;
+		}
+
+		/**
+		 * Return the number of processes that map this page.
+		 *
+		 * @return the number of sharers.
+		 */
+		public int getNumSharers() {
+			return sharers.size();
+		}
+
+		/**
+		 * Test whether any process has used this page since its used bits
+		 * were last cleared.
+		 *
+		 * @return <tt>true</tt> if the page has been used.
+		 */
+		public boolean isUsed() {
+			if (used)
+				return true;
+
+			for (TranslationEntry entry : entries) {
+				if (entry.used)
+					return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * Clear the used bit of this page in every process that maps it.
+		 */
+		public void clearUsed() {
+			used = false;
+
+			for (TranslationEntry entry : entries)
+				entry.used = false;
+		}
+
+		private String name;
+
+		private int vpn;
+
+		private int ppn;
+
+		private boolean stale = false;
+
+		/** Set if a process that has since unmapped the page used it. */
+		private boolean used = false;
+
+		private ArrayList<VMProcess> sharers = new ArrayList<VMProcess>();
+
+		/** The page table entry of each sharer for this page. */
+		private ArrayList<TranslationEntry> entries =
+				new ArrayList<TranslationEntry>();
+
+		/** The index of each entry in <tt>entries</tt>. */
+		private IdentityHashMap<TranslationEntry, Integer> indices =
+				new IdentityHashMap<TranslationEntry, Integer>();
+	}
+
+	/** The resident pages of each executable, by virtual page number. */
+	private HashMap<String, HashMap<Integer, Page>> files =
+			new HashMap<String, HashMap<Integer, Page>>();
+}
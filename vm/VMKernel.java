@@ -7,6 +7,22 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * The kernel keeps a core map recording which page of which process each
+ * frame holds. When a process needs a frame and none is free, the replacement
+ * policy named by <tt>VMKernel.replacementPolicy</tt> chooses a page to
+ * evict; a dirty page is written to the machine's swap device first,
+ * together with any dirty neighbours it can be clustered with. All paging, in
+ * every process, is serialized by one lock.
+ *
+ * <p>
+ * Read-only pages of executables are shared: the first process to fault on
+ * one loads it into a frame that every other process running the same
+ * executable maps too, and the page stays cached after they exit. Likewise,
+ * every untouched stack and uninitialized data page, in every process, maps
+ * one read-only zero page, and gets a private frame only when it is first
+ * written.
  */
 public class VMKernel extends UserKernel {
 	/**
@@ -21,6 +37,18 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		pagingLock = new Lock();
+		coreMap = new CoreMap(Machine.processor().getNumPhysPages());
+		textPages = new TextPageCache();
+
+		String policyName = Config.getString("VMKernel.replacementPolicy",
+				"nachos.vm.ClockPolicy");
+		policy = (ReplacementPolicy) Lib.constructObject(policyName);
+
+		Lib.assertTrue(Machine.swapDevice() != null,
+				"VMKernel requires Machine.swapDevice");
+		swap = new SwapSpace(Machine.swapDevice());
 	}
 
 	/**
@@ -41,9 +69,345 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		swap.close();
+
+		System.out.println("VM: page faults " + numFaults
+				+ ", loaded from executables " + numCoffLoads
+				+ ", shared " + numTextShares
+				+ ", zero-filled " + numZeroFills + ", zero page shared "
+				+ numZeroShares + ", copied on write " + numCopyOnWrites
+				+ ", swapped in "
+				+ numSwapIns + ", evictions " + numEvictions
+				+ ", swapped out " + numSwapOuts + " in " + numSwapWrites
+				+ " writes, mapped file pages read " + numMappedReads + " ("
+				+ numReadAheads + " ahead), written back " + numMappedWrites);
+
 		super.terminate();
 	}
 
+	/**
+	 * Find a frame for a page that is being loaded, evicting a page if no
+	 * frame is free. The frame is not in the core map until
+	 * <tt>pageMapped()</tt> is called, so it cannot be chosen for eviction
+	 * while it is being filled. The paging lock must be held.
+	 *
+	 * @return the frame, or -1 if every frame is pinned.
+	 */
+	int getFrame() {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		numFaults++;
+
+		int ppn = allocatePage();
+		if (ppn != -1)
+			return ppn;
+
+		// the current process's latest used bits may only be in the TLB
+		UserProcess current = currentProcess();
+		if (current instanceof VMProcess)
+			((VMProcess) current).syncTLB();
+
+		ppn = policy.findVictim(coreMap);
+		if (ppn == -1)
+			return -1;
+
+		TextPageCache.Page textPage = coreMap.getTextPage(ppn);
+		if (textPage != null) {
+			Lib.debug(dbgVM, "\tevicting shared page from frame " + ppn);
+
+			coreMap.unmap(ppn);
+			if (textPage == zeroPage)
+				zeroPage = null;
+			else
+				textPages.remove(textPage);
+
+			for (int i = 0; i < textPage.getNumSharers(); i++)
+				textPage.getSharer(i).evictTextPage(textPage.getSharerVPN(i));
+		}
+		else {
+			VMProcess owner = coreMap.getOwner(ppn);
+			TranslationEntry entry = coreMap.getEntry(ppn);
+			Lib.debug(dbgVM, "\tevicting page " + entry.vpn + " from frame "
+					+ ppn);
+
+			coreMap.unmap(ppn);
+			owner.evictPage(entry.vpn);
+		}
+		numEvictions++;
+
+		return ppn;
+	}
+
+	/**
+	 * Record that a frame has been filled with a page and mapped by its owner.
+	 * The paging lock must be held.
+	 *
+	 * @param ppn the frame.
+	 * @param owner the process that owns the page.
+	 * @param entry the owner's page table entry for the page.
+	 */
+	void pageMapped(int ppn, VMProcess owner, TranslationEntry entry) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		coreMap.map(ppn, owner, entry);
+		policy.pageMapped(coreMap, ppn);
+	}
+
+	/**
+	 * Record that a frame's page is no longer mapped, and free the frame. The
+	 * paging lock must be held.
+	 *
+	 * @param ppn the frame.
+	 */
+	void pageUnmapped(int ppn) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		coreMap.unmap(ppn);
+		deallocatePage(ppn);
+	}
+
+	/**
+	 * Find a resident, shared page of an executable, and map it into a
+	 * process. The paging lock must be held.
+	 *
+	 * @param name the name of the executable.
+	 * @param vpn the virtual page number of the page.
+	 * @param process the process mapping the page.
+	 * @param entry the process's page table entry for the page.
+	 * @return the page, or <tt>null</tt> if it is not resident.
+	 */
+	TextPageCache.Page shareTextPage(String name, int vpn, VMProcess process,
+			TranslationEntry entry) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		TextPageCache.Page page = textPages.lookup(name, vpn);
+		if (page != null) {
+			page.addSharer(process, entry);
+			numTextShares++;
+		}
+
+		return page;
+	}
+
+	/**
+	 * Record that a frame has been filled with a read-only page of an
+	 * executable, which other processes running it may share, and map it into
+	 * the process that loaded it. The paging lock must be held.
+	 *
+	 * @param ppn the frame.
+	 * @param name the name of the executable.
+	 * @param vpn the virtual page number of the page.
+	 * @param process the process that loaded the page.
+	 * @param entry the process's page table entry for the page.
+	 * @return the new shared page.
+	 */
+	TextPageCache.Page textPageMapped(int ppn, String name, int vpn,
+			VMProcess process, TranslationEntry entry) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		TextPageCache.Page page = textPages.insert(name, vpn, ppn);
+		page.addSharer(process, entry);
+
+		coreMap.mapTextPage(ppn, page);
+		policy.pageMapped(coreMap, ppn);
+
+		return page;
+	}
+
+	/**
+	 * Map the zero page into a process, if it is resident. The paging lock
+	 * must be held.
+	 *
+	 * @param process the process mapping the page.
+	 * @param entry the process's page table entry for the page.
+	 * @return the zero page, or <tt>null</tt> if it is not resident.
+	 */
+	TextPageCache.Page shareZeroPage(VMProcess process, TranslationEntry entry) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		if (zeroPage != null) {
+			zeroPage.addSharer(process, entry);
+			numZeroShares++;
+		}
+
+		return zeroPage;
+	}
+
+	/**
+	 * Record that a frame has been zero-filled to become the zero page, and
+	 * map it into the process that needed it. The paging lock must be held.
+	 *
+	 * @param ppn the frame.
+	 * @param process the process mapping the page.
+	 * @param entry the process's page table entry for the page.
+	 * @return the zero page.
+	 */
+	TextPageCache.Page zeroPageMapped(int ppn, VMProcess process,
+			TranslationEntry entry) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+		Lib.assertTrue(zeroPage == null);
+
+		zeroPage = new TextPageCache.Page(null, -1, ppn);
+		zeroPage.addSharer(process, entry);
+
+		coreMap.mapTextPage(ppn, zeroPage);
+		policy.pageMapped(coreMap, ppn);
+
+		return zeroPage;
+	}
+
+	/**
+	 * Record that a process no longer maps a shared page at one of its
+	 * virtual pages. The page stays in memory for the next process to need
+	 * it, unless its executable has changed. The paging lock must be held.
+	 *
+	 * @param page the page.
+	 * @param process the process.
+	 * @param entry the process's page table entry that mapped the page.
+	 */
+	void textPageUnmapped(TextPageCache.Page page, VMProcess process,
+			TranslationEntry entry) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		page.removeSharer(process, entry);
+		if (page.isStale() && page.getNumSharers() == 0)
+			pageUnmapped(page.getPPN());
+	}
+
+	/**
+	 * Drop the shared pages of an executable that has been changed, freeing
+	 * those no process maps.
+	 *
+	 * @param name the name of the executable.
+	 */
+	void invalidateTextPages(String name) {
+		// most files written are not executables, so look before locking;
+		// the lookup cannot be interrupted
+		if (!textPages.contains(name))
+			return;
+
+		pagingLock.acquire();
+
+		TextPageCache.Page[] stale = textPages.invalidate(name);
+		if (stale != null) {
+			Lib.debug(dbgVM, "\tdropping " + stale.length
+					+ " shared pages of " + name);
+
+			for (TextPageCache.Page page : stale) {
+				if (page.getNumSharers() == 0)
+					pageUnmapped(page.getPPN());
+			}
+		}
+
+		pagingLock.release();
+	}
+
+	/**
+	 * Called when a page is filled from the executable, rather than from swap.
+	 *
+	 * @param fromCoff <tt>true</tt> if the page was read from an executable,
+	 * <tt>false</tt> if it was zero-filled.
+	 */
+	void pageLoaded(boolean fromCoff) {
+		if (fromCoff)
+			numCoffLoads++;
+		else
+			numZeroFills++;
+	}
+
+	/**
+	 * Called when a process reads pages of a mapped file into frames.
+	 *
+	 * @param count the number of pages read.
+	 * @param readAhead the number of those pages that were not faulted on.
+	 */
+	void mappedPagesRead(int count, int readAhead) {
+		numMappedReads += count;
+		numReadAheads += readAhead;
+	}
+
+	/**
+	 * Called when a process writes dirty pages back to a mapped file.
+	 *
+	 * @param count the number of pages written.
+	 */
+	void mappedPagesWritten(int count) {
+		numMappedWrites += count;
+	}
+
+	/**
+	 * Called when a process writes to a page that mapped the zero page, and
+	 * the page is given a private frame.
+	 */
+	void pageCopiedOnWrite() {
+		numCopyOnWrites++;
+	}
+
+	/**
+	 * Allocate a run of consecutive swap slots. The paging lock must be held.
+	 *
+	 * @param count the number of slots.
+	 * @return the first slot of the run.
+	 */
+	int allocateSwapSlots(int count) {
+		return swap.allocate(count);
+	}
+
+	/**
+	 * Free a swap slot. The paging lock must be held.
+	 *
+	 * @param slot the slot number.
+	 */
+	void freeSwapSlot(int slot) {
+		swap.free(slot);
+	}
+
+	/**
+	 * Fill a frame from a swap slot. The paging lock must be held.
+	 *
+	 * @param slot the slot to read.
+	 * @param ppn the frame to fill.
+	 */
+	void swapIn(int slot, int ppn) {
+		swap.read(slot, ppn);
+		numSwapIns++;
+	}
+
+	/**
+	 * Write frames to a run of consecutive swap slots, in one transfer. The
+	 * paging lock must be held.
+	 *
+	 * @param firstSlot the first slot to write.
+	 * @param ppns the frame to copy into each slot.
+	 * @param count the number of slots.
+	 */
+	void swapOut(int firstSlot, int[] ppns, int count) {
+		swap.write(firstSlot, ppns, count);
+		numSwapOuts += count;
+		numSwapWrites++;
+	}
+
+	/** Serializes all paging, and guards the core map and the swap space. */
+	static Lock pagingLock;
+
+	/** The page held by each physical frame. */
+	static CoreMap coreMap;
+
+	private TextPageCache textPages;
+
+	/** The shared zero page, or <tt>null</tt> if it is not resident. */
+	private TextPageCache.Page zeroPage = null;
+
+	private ReplacementPolicy policy;
+
+	private SwapSpace swap;
+
+	private long numFaults = 0, numCoffLoads = 0, numTextShares = 0,
+			numZeroFills = 0, numZeroShares = 0, numCopyOnWrites = 0,
+			numMappedReads = 0, numReadAheads = 0, numMappedWrites = 0,
+			numSwapIns = 0, numEvictions = 0, numSwapOuts = 0,
+			numSwapWrites = 0;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
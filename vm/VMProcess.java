@@ -5,8 +5,36 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is loaded when the process starts. Every page table entry starts
+ * out invalid, and the first access to a page, by the processor or by a
+ * system call, allocates a frame for it and fills it: code and data pages are
+ * read from the executable. Stack, argument and uninitialized data pages
+ * start out mapping the kernel's shared zero page, read-only, and get a
+ * private frame the first time they are written. Starting a process therefore
+ * costs the same no matter how large its executable is, and a process only
+ * needs frames for the pages it writes or reads from its executable.
+ *
+ * <p>
+ * When the kernel evicts one of this process's pages, the page is written to
+ * swap if it is dirty, along with any dirty neighbours that are resident, and
+ * read back from swap the next time it is touched. A clean page is simply
+ * dropped, and reloaded from wherever it came from.
+ *
+ * <p>
+ * <tt>mmap()</tt> maps an open file at a page-aligned address in the
+ * <tt>VMProcess.mmapPages</tt> pages above the program's pages, so the
+ * address space stays dense and its per-page tables stay small. Its pages are
+ * read from the file when first touched, and a fault just past a resident
+ * page also reads up to <tt>VMProcess.mmapReadAhead</tt> following pages into
+ * free frames, in the same transfer. Dirty pages are written back to the
+ * file, instead of swap, when they are evicted and when the file is closed.
  */
 public class VMProcess extends UserProcess {
 	/**
@@ -14,6 +42,31 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+
+		String tlbReplacement = Config.getString("VMProcess.tlbReplacement",
+				"nru");
+		Lib.assertTrue(tlbReplacement.equals("nru")
+				|| tlbReplacement.equals("random"),
+				"VMProcess.tlbReplacement must be nru or random");
+		randomTLBReplacement = tlbReplacement.equals("random");
+
+		mmapReadAhead = Config.getInteger("VMProcess.mmapReadAhead", 3);
+		Lib.assertTrue(mmapReadAhead >= 0);
+
+		mmapPages = Config.getInteger("VMProcess.mmapPages", 1024);
+		Lib.assertTrue(mmapPages >= 0);
+
+		// system calls keep the pages they transfer to directly pinned
+		copier = new VirtualMemoryCopier() {
+			protected TranslationEntry translate(int vpn, boolean write,
+					boolean pin) {
+				return pageIn(vpn, write, pin);
+			}
+
+			protected void unpin(int vpn) {
+				unpinPage(vpn);
+			}
+		};
 	}
 
 	/**
@@ -22,50 +75,953 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+
+		if (Machine.processor().hasTLB())
+			flushTLB();
 	}
 
 	/**
 	 * Restore the state of this process after a context switch. Called by
-	 * <tt>UThread.restoreState()</tt>.
+	 * <tt>UThread.restoreState()</tt>. With a TLB, there is nothing to do:
+	 * the TLB was flushed when the last process was switched out, and it is
+	 * refilled one miss at a time.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		if (!Machine.processor().hasTLB())
+			super.restoreState();
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
 	 * demand-paged.
-	 * 
+	 *
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, 0, false, false, false,
+					false);
+
+		// pages past the last section are stack and arguments
+		pageSections = new CoffSection[numPages];
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			Lib.debug(dbgProcess, "\tmapping " + section.getName()
+					+ " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+
+				pageTable[vpn].readOnly = section.isReadOnly();
+				pageSections[vpn] = section;
+			}
+		}
+
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+
+		textPages = new TextPageCache.Page[numPages];
+		pageMappings = new MappedFile[numPages];
+
+		return true;
 	}
 
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Release any resources allocated by <tt>loadSections()</tt>: the frames
+	 * holding this process's pages, and its swap slots. Files still mapped
+	 * are written back first.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+
+		for (MappedFile mapping : mappings.values())
+			unmapFile(mapping);
+		mappings.clear();
+
+		VMKernel.pagingLock.acquire();
+
+		if (Machine.processor().hasTLB())
+			flushTLB();
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (pageTable[vpn].valid) {
+				pageTable[vpn].valid = false;
+
+				if (textPages[vpn] != null) {
+					kernel.textPageUnmapped(textPages[vpn], this,
+							pageTable[vpn]);
+					textPages[vpn] = null;
+				}
+				else {
+					kernel.pageUnmapped(pageTable[vpn].ppn);
+				}
+			}
+
+			if (swapSlots[vpn] != -1) {
+				kernel.freeSwapSlot(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+
+		VMKernel.pagingLock.release();
+	}
+
+	/**
+	 * Return the translation for a page of this process's virtual memory,
+	 * loading the page first if it is not in memory.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param write <tt>true</tt> if the page is about to be written.
+	 * @return the translation entry of the page, or <tt>null</tt> if the page
+	 * is outside this process's address space or cannot be loaded.
+	 */
+	protected TranslationEntry getTranslationEntry(int vpn, boolean write) {
+		return pageIn(vpn, write, false);
+	}
+
+	/**
+	 * Handle a syscall exception. Adds <tt>mmap()</tt> to the system calls
+	 * handled by <tt>UserProcess</tt>, and refuses <tt>read()</tt> and
+	 * <tt>write()</tt> on a file descriptor that is mapped.
+	 *
+	 * @param syscall the syscall number.
+	 * @param a0 the first syscall argument.
+	 * @param a1 the second syscall argument.
+	 * @param a2 the third syscall argument.
+	 * @param a3 the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallMmap:
+			return handleMmap(a0, a1);
+
+		case syscallRead:
+		case syscallWrite:
+			if (mappings.containsKey(a0))
+				return -1;
+			break;
+		}
+
+		return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+
+	/**
+	 * Handle the <tt>mmap()</tt> system call: map the whole of an open file
+	 * at a page-aligned address that is not part of the program or another
+	 * mapping. The whole file must fit in the <tt>mmapPages</tt> pages above
+	 * the program. No page is read until it is touched.
+	 *
+	 * @param fd the file descriptor of the file.
+	 * @param vaddr the address to map the start of the file at.
+	 * @return the length of the file, or -1 if it could not be mapped.
+	 */
+	private int handleMmap(int fd, int vaddr) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || file.getFileSystem() == null
+				|| mappings.containsKey(fd) || file.length() < 0)
+			return -1;
+
+		if (Processor.offsetFromAddress(vaddr) != 0)
+			return -1;
+
+		MappedFile mapping = new MappedFile(file,
+				Processor.pageFromAddress(vaddr));
+		int firstVPN = mapping.getFirstVPN();
+		int endVPN = firstVPN + mapping.getNumPages();
+		if (firstVPN < numPages || endVPN > numPages + mmapPages)
+			return -1;
+
+		for (int vpn = firstVPN; vpn < endVPN && vpn < pageTable.length;
+				vpn++) {
+			if (pageTable[vpn] != null)
+				return -1;
+		}
+
+		Lib.debug(dbgVM, "\tmapping " + file.getName() + " at pages "
+				+ firstVPN + "-" + (endVPN - 1));
+
+		VMKernel.pagingLock.acquire();
+
+		if (endVPN > pageTable.length)
+			growAddressSpace(endVPN);
+
+		for (int vpn = firstVPN; vpn < endVPN; vpn++) {
+			pageTable[vpn] = new TranslationEntry(vpn, 0, false, false, false,
+					false);
+			pageMappings[vpn] = mapping;
+		}
+
+		VMKernel.pagingLock.release();
+
+		mappings.put(fd, mapping);
+
+		return mapping.getLength();
+	}
+
+	/**
+	 * Extend the per-page tables to cover <i>size</i> virtual pages. The new
+	 * pages have no translation. The paging lock must be held.
+	 */
+	private void growAddressSpace(int size) {
+		int oldSize = pageTable.length;
+
+		pageTable = Arrays.copyOf(pageTable, size);
+		pageSections = Arrays.copyOf(pageSections, size);
+		textPages = Arrays.copyOf(textPages, size);
+		pageMappings = Arrays.copyOf(pageMappings, size);
+
+		swapSlots = Arrays.copyOf(swapSlots, size);
+		Arrays.fill(swapSlots, oldSize, size, -1);
+
+		if (!Machine.processor().hasTLB())
+			Machine.processor().setPageTable(pageTable);
+	}
+
+	/**
+	 * Remove the mapping of a file when its descriptor is closed.
+	 *
+	 * @param fd the file descriptor.
+	 */
+	protected void fileClosing(int fd) {
+		super.fileClosing(fd);
+
+		MappedFile mapping = mappings.remove(fd);
+		if (mapping != null)
+			unmapFile(mapping);
+	}
+
+	/**
+	 * Write the dirty resident pages of a mapped file back to it, each run of
+	 * consecutive dirty pages in one transfer, and remove the mapping from
+	 * the address space.
+	 */
+	private void unmapFile(MappedFile mapping) {
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+		int firstVPN = mapping.getFirstVPN();
+		int endVPN = firstVPN + mapping.getNumPages();
+
+		VMKernel.pagingLock.acquire();
+
+		if (Machine.processor().hasTLB()
+				&& UserKernel.currentProcess() == this) {
+			for (int vpn = firstVPN; vpn < endVPN; vpn++)
+				invalidateTLBEntry(vpn);
+		}
+
+		int[] ppns = new int[mapping.getNumPages()];
+		for (int vpn = firstVPN; vpn < endVPN;) {
+			int count = 0;
+			while (vpn + count < endVPN && pageTable[vpn + count].valid
+					&& pageTable[vpn + count].dirty) {
+				ppns[count] = pageTable[vpn + count].ppn;
+				count++;
+			}
+
+			if (count == 0) {
+				vpn++;
+				continue;
+			}
+
+			Lib.debug(dbgVM, "\twriting back pages " + vpn + "-"
+					+ (vpn + count - 1));
+			mapping.write(vpn, ppns, count);
+			kernel.mappedPagesWritten(count);
+			vpn += count;
+		}
+
+		for (int vpn = firstVPN; vpn < endVPN; vpn++) {
+			if (pageTable[vpn].valid)
+				kernel.pageUnmapped(pageTable[vpn].ppn);
+
+			pageTable[vpn] = null;
+			pageMappings[vpn] = null;
+		}
+
+		VMKernel.pagingLock.release();
+
+		if (mapping.isModified())
+			fileModified(mapping.getFile().getName());
 	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
 	 * <tt>Processor.exceptionZZZ</tt> constants.
-	 * 
+	 *
 	 * @param cause the user exception that occurred.
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionTLBMiss:
+		case Processor.exceptionPageFault:
+			int vaddr = processor.readRegister(Processor.regBadVAddr);
+			if (!handlePageFault(vaddr))
+				super.handleException(cause);
+			break;
+
+		case Processor.exceptionReadOnly:
+			vaddr = processor.readRegister(Processor.regBadVAddr);
+			if (!handleReadOnlyFault(vaddr))
+				super.handleException(cause);
+			break;
+
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * Make the page containing <i>vaddr</i> accessible, so that the faulting
+	 * instruction can be restarted.
+	 *
+	 * @param vaddr the virtual address that faulted.
+	 * @return <tt>true</tt> if the page is now accessible, <tt>false</tt> if
+	 * the address is invalid or the page could not be loaded.
+	 */
+	private boolean handlePageFault(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+
+		TranslationEntry entry = super.getTranslationEntry(vpn, false);
+		if (entry == null) {
+			Lib.debug(dbgVM, "\tbad address 0x" + Lib.toHexString(vaddr));
+			return false;
+		}
+
+		// most TLB misses are for resident pages, and need no lock
+		if (!entry.valid) {
+			VMKernel.pagingLock.acquire();
+			boolean loaded = entry.valid || loadPage(vpn);
+			VMKernel.pagingLock.release();
+
+			if (!loaded)
+				return false;
+		}
+
+		// if the page was evicted again since, this refill is invalid and
+		// the instruction simply faults again
+		if (Machine.processor().hasTLB())
+			refillTLB(entry);
+
+		return true;
+	}
+
+	/**
+	 * Give a page that maps the zero page a private frame, so that the write
+	 * that faulted on it can be restarted. A write to a genuinely read-only
+	 * page is an error.
+	 *
+	 * @param vaddr the virtual address that faulted.
+	 * @return <tt>true</tt> if the page is now writable, <tt>false</tt> if the
+	 * page is read-only or no frame could be found.
+	 */
+	private boolean handleReadOnlyFault(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+
+		TranslationEntry entry = super.getTranslationEntry(vpn, false);
+		if (entry == null || !isWritable(vpn)) {
+			Lib.debug(dbgVM, "\twrite to read-only address 0x"
+					+ Lib.toHexString(vaddr));
+			return false;
+		}
+
+		// the page may have been evicted, or already copied, in the meantime
+		VMKernel.pagingLock.acquire();
+		boolean copied = !entry.valid || textPages[vpn] == null
+				|| copyOnWrite(vpn);
+		VMKernel.pagingLock.release();
+
+		if (!copied)
+			return false;
+
+		if (Machine.processor().hasTLB()) {
+			invalidateTLBEntry(vpn);
+			if (entry.valid)
+				refillTLB(entry);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Make a page resident, and optionally pin it. A page about to be written
+	 * that maps the zero page is given a private frame first.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param write <tt>true</tt> if the page is about to be written.
+	 * @param pin <tt>true</tt> if the page should be pinned.
+	 * @return the page's translation entry, or <tt>null</tt> if the page is
+	 * outside the address space, could not be loaded, or could not be pinned.
+	 */
+	private TranslationEntry pageIn(int vpn, boolean write, boolean pin) {
+		TranslationEntry entry = super.getTranslationEntry(vpn, false);
+		if (entry == null)
+			return null;
+
+		VMKernel.pagingLock.acquire();
+
+		// leave enough frames unpinned for every process to make progress
+		CoreMap coreMap = VMKernel.coreMap;
+		if (pin && coreMap.getNumPinned() >= coreMap.getNumFrames() / 2)
+			entry = null;
+		else if (!entry.valid && !loadPage(vpn))
+			entry = null;
+		else if (write && textPages[vpn] != null && isWritable(vpn)
+				&& !copyOnWrite(vpn))
+			entry = null;
+		else if (pin)
+			coreMap.pin(entry.ppn);
+
+		VMKernel.pagingLock.release();
+
+		return entry;
+	}
+
+	/**
+	 * Undo a <tt>pageIn()</tt> that pinned a page.
+	 *
+	 * @param vpn the virtual page number.
+	 */
+	private void unpinPage(int vpn) {
+		VMKernel.pagingLock.acquire();
+		VMKernel.coreMap.unpin(pageTable[vpn].ppn);
+		VMKernel.pagingLock.release();
+	}
+
+	/**
+	 * Give a page a frame and fill it from swap or from its section of the
+	 * executable, or map the zero page if it has never been written and has
+	 * no contents in the executable. The paging lock must be held.
+	 *
+	 * @param vpn the page to load.
+	 * @return <tt>true</tt> if the page was loaded.
+	 */
+	private boolean loadPage(int vpn) {
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+
+		MappedFile mapping = pageMappings[vpn];
+		if (mapping != null)
+			return loadMappedPages(vpn, mapping);
+
+		CoffSection section = pageSections[vpn];
+		if (section != null && section.isReadOnly())
+			return loadTextPage(vpn);
+
+		if (swapSlots[vpn] == -1
+				&& (section == null || !section.isInitialzed()))
+			return mapZeroPage(vpn);
+
+		int ppn = kernel.getFrame();
+		if (ppn == -1) {
+			Lib.debug(dbgVM, "\tno frame for page " + vpn);
+			return false;
+		}
+
+		if (swapSlots[vpn] != -1) {
+			Lib.debug(dbgVM, "\tswapping in page " + vpn);
+			kernel.swapIn(swapSlots[vpn], ppn);
+		}
+		else {
+			Lib.debug(dbgVM, "\tloading page " + vpn + " from section "
+					+ section.getName());
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+			kernel.pageLoaded(true);
+		}
+
+		// only publish the entry once the frame is filled
+		TranslationEntry entry = pageTable[vpn];
+		entry.ppn = ppn;
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+
+		kernel.pageMapped(ppn, this, entry);
+
+		return true;
+	}
+
+	/**
+	 * Read a page of a mapped file into a frame. If the page before it is
+	 * resident, or it is the first page, the process is probably scanning the
+	 * file, so up to <tt>mmapReadAhead</tt> following pages that are not
+	 * resident are read in the same transfer, into frames that are free;
+	 * nothing is evicted to make room for them. The paging lock must be held.
+	 *
+	 * @param vpn the page to load.
+	 * @param mapping the mapping the page belongs to.
+	 * @return <tt>true</tt> if the page was loaded.
+	 */
+	private boolean loadMappedPages(int vpn, MappedFile mapping) {
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+
+		int ppn = kernel.getFrame();
+		if (ppn == -1) {
+			Lib.debug(dbgVM, "\tno frame for page " + vpn);
+			return false;
+		}
+
+		int[] ppns = new int[1 + mmapReadAhead];
+		ppns[0] = ppn;
+		int count = 1;
+
+		if (vpn == mapping.getFirstVPN() || pageTable[vpn - 1].valid) {
+			while (count < ppns.length && mapping.contains(vpn + count)
+					&& !pageTable[vpn + count].valid) {
+				ppn = kernel.allocatePage();
+				if (ppn == -1)
+					break;
+
+				ppns[count++] = ppn;
+			}
+		}
+
+		Lib.debug(dbgVM, "\treading pages " + vpn + "-" + (vpn + count - 1)
+				+ " from " + mapping.getFile().getName());
+		if (!mapping.read(vpn, ppns, count)) {
+			for (int i = 0; i < count; i++)
+				kernel.deallocatePage(ppns[i]);
+			return false;
+		}
+		kernel.mappedPagesRead(count, count - 1);
+
+		for (int i = 0; i < count; i++) {
+			TranslationEntry entry = pageTable[vpn + i];
+			entry.ppn = ppns[i];
+			entry.used = false;
+			entry.dirty = false;
+			entry.valid = true;
+
+			kernel.pageMapped(ppns[i], this, entry);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Map a read-only page of the executable, sharing the frame of another
+	 * process running the same executable if the page is resident, and
+	 * otherwise loading it into a frame that later processes can share. The
+	 * paging lock must be held.
+	 *
+	 * @param vpn the page to load.
+	 * @return <tt>true</tt> if the page was loaded.
+	 */
+	private boolean loadTextPage(int vpn) {
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+		TranslationEntry entry = pageTable[vpn];
+
+		TextPageCache.Page page = kernel.shareTextPage(executableName, vpn,
+				this, entry);
+		if (page != null) {
+			Lib.debug(dbgVM, "\tsharing page " + vpn + " in frame "
+					+ page.getPPN());
+		}
+		else {
+			int ppn = kernel.getFrame();
+			if (ppn == -1) {
+				Lib.debug(dbgVM, "\tno frame for page " + vpn);
+				return false;
+			}
+
+			CoffSection section = pageSections[vpn];
+			Lib.debug(dbgVM, "\tloading shared page " + vpn + " from section "
+					+ section.getName());
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+			kernel.pageLoaded(true);
+
+			entry.ppn = ppn;
+			page = kernel.textPageMapped(ppn, executableName, vpn, this, entry);
+		}
+
+		textPages[vpn] = page;
+
+		entry.ppn = page.getPPN();
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+
+		return true;
+	}
+
+	/**
+	 * Map the kernel's zero page, read-only, at a page that has never been
+	 * written, zero-filling a frame for it if it is not resident. The paging
+	 * lock must be held.
+	 *
+	 * @param vpn the page to map.
+	 * @return <tt>true</tt> if the page was mapped.
+	 */
+	private boolean mapZeroPage(int vpn) {
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+		TranslationEntry entry = pageTable[vpn];
+
+		TextPageCache.Page page = kernel.shareZeroPage(this, entry);
+		if (page != null) {
+			Lib.debug(dbgVM, "\tmapping zero page at page " + vpn);
+		}
+		else {
+			int ppn = kernel.getFrame();
+			if (ppn == -1) {
+				Lib.debug(dbgVM, "\tno frame for page " + vpn);
+				return false;
+			}
+
+			Lib.debug(dbgVM, "\tzero-filling page " + vpn);
+			Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+					(ppn + 1) * pageSize, (byte) 0);
+			kernel.pageLoaded(false);
+
+			entry.ppn = ppn;
+			page = kernel.zeroPageMapped(ppn, this, entry);
+		}
+
+		textPages[vpn] = page;
+
+		entry.ppn = page.getPPN();
+		entry.readOnly = true;
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+
+		return true;
+	}
+
+	/**
+	 * Give a page that maps the zero page a private, zero-filled frame that
+	 * it can write. The paging lock must be held.
+	 *
+	 * @param vpn the page.
+	 * @return <tt>true</tt> if the page has a private frame.
+	 */
+	private boolean copyOnWrite(int vpn) {
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+		TranslationEntry entry = pageTable[vpn];
+
+		if (Machine.processor().hasTLB()
+				&& UserKernel.currentProcess() == this)
+			invalidateTLBEntry(vpn);
+
+		int ppn = kernel.getFrame();
+		if (ppn == -1) {
+			Lib.debug(dbgVM, "\tno frame to copy page " + vpn);
+			return false;
+		}
+
+		// finding a frame may have evicted the zero page itself
+		if (textPages[vpn] != null) {
+			kernel.textPageUnmapped(textPages[vpn], this, entry);
+			textPages[vpn] = null;
+		}
+
+		Lib.debug(dbgVM, "\tcopying page " + vpn + " on write");
+		Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+				(ppn + 1) * pageSize, (byte) 0);
+		kernel.pageCopiedOnWrite();
+
+		entry.ppn = ppn;
+		entry.readOnly = false;
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+
+		kernel.pageMapped(ppn, this, entry);
+
+		return true;
+	}
+
+	/**
+	 * Test whether a page may be written by this process: a page that is not
+	 * part of a read-only section.
+	 */
+	private boolean isWritable(int vpn) {
+		return pageSections[vpn] == null || !pageSections[vpn].isReadOnly();
+	}
+
+	/**
+	 * Stop mapping a shared page, which the kernel has chosen for eviction.
+	 * The paging lock must be held.
+	 *
+	 * @param vpn the page.
+	 */
+	void evictTextPage(int vpn) {
+		if (Machine.processor().hasTLB()
+				&& UserKernel.currentProcess() == this)
+			invalidateTLBEntry(vpn);
+
+		pageTable[vpn].valid = false;
+		pageTable[vpn].readOnly = !isWritable(vpn);
+		textPages[vpn] = null;
+	}
+
+	/**
+	 * Discard the cached headers and shared pages of a file that has changed,
+	 * so later processes load the new contents.
+	 *
+	 * @param name the name of the file.
+	 */
+	protected void fileModified(String name) {
+		super.fileModified(name);
+		((VMKernel) Kernel.kernel).invalidateTextPages(name);
+	}
+
+	/**
+	 * Take a page out of its frame, which the kernel has chosen for eviction,
+	 * writing it to swap if it has changed since it was loaded. The page is
+	 * invalid before any I/O starts, so this process faults on it, and waits
+	 * for the paging lock, if it runs in the meantime. The paging lock must be
+	 * held.
+	 *
+	 * <p>
+	 * A dirty page is written together with up to
+	 * <tt>maxSwapCluster - 1</tt> of its dirty, resident neighbours, in one
+	 * transfer to consecutive slots. The neighbours stay in memory but become
+	 * clean, so when their turn comes they can be dropped without another
+	 * write.
+	 *
+	 * @param vpn the page to evict.
+	 */
+	void evictPage(int vpn) {
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+		TranslationEntry entry = pageTable[vpn];
+
+		if (Machine.processor().hasTLB()
+				&& UserKernel.currentProcess() == this)
+			invalidateTLBEntry(vpn);
+
+		entry.valid = false;
+
+		if (!entry.dirty)
+			return;
+
+		MappedFile mapping = pageMappings[vpn];
+		if (mapping != null) {
+			Lib.debug(dbgVM, "\twriting back page " + vpn);
+			entry.dirty = false;
+			mapping.write(vpn, new int[] { entry.ppn }, 1);
+			kernel.mappedPagesWritten(1);
+			return;
+		}
+
+		int first = vpn, last = vpn;
+		while (last - first + 1 < maxSwapCluster && isClusterable(last + 1))
+			last++;
+		while (last - first + 1 < maxSwapCluster && isClusterable(first - 1))
+			first--;
+
+		int count = last - first + 1;
+		int[] ppns = new int[count];
+
+		int slot;
+		if (count == 1 && swapSlots[vpn] != -1) {
+			slot = swapSlots[vpn];
+		}
+		else {
+			// the old slots are freed first, so the run can reuse them
+			for (int i = first; i <= last; i++) {
+				if (swapSlots[i] != -1)
+					kernel.freeSwapSlot(swapSlots[i]);
+			}
+
+			slot = kernel.allocateSwapSlots(count);
+			for (int i = first; i <= last; i++)
+				swapSlots[i] = slot + (i - first);
+		}
+
+		for (int i = first; i <= last; i++) {
+			ppns[i - first] = pageTable[i].ppn;
+			pageTable[i].dirty = false;
+		}
+
+		Lib.debug(dbgVM, "\tswapping out pages " + first + "-" + last);
+		kernel.swapOut(slot, ppns, count);
+	}
+
+	/**
+	 * Test whether a page can be written to swap along with a neighbour that
+	 * is being evicted: it must be resident, dirty and not pinned.
+	 */
+	private boolean isClusterable(int vpn) {
+		if (vpn < 0 || vpn >= numPages)
+			return false;
+
+		TranslationEntry entry = pageTable[vpn];
+		return entry.valid && entry.dirty
+				&& VMKernel.coreMap.getOwner(entry.ppn) == this
+				&& VMKernel.coreMap.isEvictable(entry.ppn);
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry back to the page table,
+	 * and clear them in the TLB, so that the page table shows which pages
+	 * have been used since the last call. Does nothing without a TLB.
+	 */
+	void syncTLB() {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB())
+			return;
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && (tlbEntry.used || tlbEntry.dirty)) {
+				syncTLBEntry(tlbEntry);
+				tlbEntry.used = false;
+				tlbEntry.dirty = false;
+				processor.writeTLBEntry(i, tlbEntry);
+			}
+		}
+	}
+
+	/**
+	 * Put a page's translation in the TLB, replacing an invalid entry if there
+	 * is one. Otherwise the victim is chosen at random, or, by default, not
+	 * recently used: an entry whose used bit is clear is preferred, and a
+	 * clean one over a dirty one, with ties broken at random. If every entry
+	 * has been used, their used bits are saved to the page table and cleared,
+	 * so the next choice reflects only recent use. The victim's used and
+	 * dirty bits are saved to the page table before it is replaced.
+	 */
+	private void refillTLB(TranslationEntry entry) {
+		Processor processor = Machine.processor();
+		int tlbSize = processor.getTLBSize();
+
+		TranslationEntry[] tlb = new TranslationEntry[tlbSize];
+		int victim = -1;
+		for (int i = 0; i < tlbSize && victim == -1; i++) {
+			tlb[i] = processor.readTLBEntry(i);
+			if (!tlb[i].valid)
+				victim = i;
+		}
+
+		if (victim == -1) {
+			int start = Lib.random(tlbSize);
+
+			if (randomTLBReplacement) {
+				victim = start;
+			}
+			else {
+				int victimClass = 4;
+				for (int j = 0; j < tlbSize; j++) {
+					int i = (start + j) % tlbSize;
+					int tlbClass = (tlb[i].used ? 2 : 0)
+							+ (tlb[i].dirty ? 1 : 0);
+
+					if (tlbClass < victimClass) {
+						victim = i;
+						victimClass = tlbClass;
+					}
+				}
+
+				if (victimClass >= 2) {
+					for (int i = 0; i < tlbSize; i++) {
+						if (i != victim) {
+							syncTLBEntry(tlb[i]);
+							tlb[i].used = false;
+							processor.writeTLBEntry(i, tlb[i]);
+						}
+					}
+				}
+			}
+
+			syncTLBEntry(tlb[victim]);
+		}
+
+		processor.writeTLBEntry(victim, entry);
+	}
+
+	/**
+	 * Remove a page's translation from the TLB, if it is there, keeping its
+	 * used and dirty bits.
+	 */
+	private void invalidateTLBEntry(int vpn) {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+				syncTLBEntry(tlbEntry);
+				processor.writeTLBEntry(i, new TranslationEntry());
+			}
+		}
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry back to the page table,
+	 * and invalidate the TLB.
+	 */
+	private void flushTLB() {
+		Processor processor = Machine.processor();
+		TranslationEntry invalid = new TranslationEntry();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			syncTLBEntry(processor.readTLBEntry(i));
+			processor.writeTLBEntry(i, invalid);
+		}
+	}
+
+	/**
+	 * Merge the used and dirty bits the processor set in a TLB entry into the
+	 * page table entry it was copied from.
+	 */
+	private void syncTLBEntry(TranslationEntry tlbEntry) {
+		if (!tlbEntry.valid)
+			return;
+
+		TranslationEntry entry = pageTable[tlbEntry.vpn];
+		entry.used |= tlbEntry.used;
+		entry.dirty |= tlbEntry.dirty;
+	}
+
+	/**
+	 * The section each page is loaded from, or <tt>null</tt> for a page that
+	 * starts out zero-filled.
+	 */
+	private CoffSection[] pageSections;
+
+	/** The swap slot holding each page, or -1 if it has none. */
+	private int[] swapSlots;
+
+	/**
+	 * The shared page each page maps, a page of the executable or the zero
+	 * page, or <tt>null</tt> for a private page.
+	 */
+	private TextPageCache.Page[] textPages;
+
+	/** The file each page is mapped from, or <tt>null</tt>. */
+	private MappedFile[] pageMappings;
+
+	/** The files mapped by <tt>mmap()</tt>, by file descriptor. */
+	private HashMap<Integer, MappedFile> mappings =
+			new HashMap<Integer, MappedFile>();
+
+	/**
+	 * The most pages read ahead of a fault on a mapped file. Set by
+	 * <tt>VMProcess.mmapReadAhead</tt>.
+	 */
+	private int mmapReadAhead;
+
+	/**
+	 * The number of pages above the program in which files can be mapped.
+	 * Set by <tt>VMProcess.mmapPages</tt>.
+	 */
+	private int mmapPages;
+
+	/**
+	 * <tt>true</tt> if TLB victims are chosen at random, rather than not
+	 * recently used. Set by <tt>VMProcess.tlbReplacement</tt>.
+	 */
+	private boolean randomTLBReplacement;
+
+	/** The most pages written to swap in one transfer. */
+	private static final int maxSwapCluster = 8;
+
+	private static final int syscallRead = 6, syscallWrite = 7,
+			syscallMmap = 10;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -0,0 +1,83 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock replacement policy. Like the clock policy, a hand sweeps the
+ * frames and clears used bits, but each frame also remembers when its page was
+ * last seen used. A page used within the last
+ * <tt>WSClockPolicy.window</tt> ticks is in its process's working set and is
+ * passed over. Of the pages outside every working set, a clean one is evicted
+ * in preference to a dirty one, since it needs no write-back.
+ *
+ * <p>
+ * If a whole lap finds only dirty pages outside the working sets, the first of
+ * them is evicted; if it finds none at all, the page that has gone unused the
+ * longest is.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		window = Config.getInteger("WSClockPolicy.window",
+				20 * Stats.TimerTicks);
+
+		Lib.assertTrue(window >= 0);
+	}
+
+	public int findVictim(CoreMap coreMap) {
+		int numFrames = coreMap.getNumFrames();
+		long[] lastUse = getLastUse(numFrames);
+		long time = Machine.timer().getTime();
+
+		int oldDirty = -1, oldest = -1;
+
+		for (int i = 0; i < numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (!coreMap.isEvictable(ppn))
+				continue;
+
+			if (coreMap.isUsed(ppn)) {
+				coreMap.clearUsed(ppn);
+				lastUse[ppn] = time;
+			}
+			else if (time - lastUse[ppn] > window) {
+				if (!coreMap.isDirty(ppn))
+					return ppn;
+
+				if (oldDirty == -1)
+					oldDirty = ppn;
+			}
+
+			if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+				oldest = ppn;
+		}
+
+		return (oldDirty != -1) ? oldDirty : oldest;
+	}
+
+	/**
+	 * Count a newly loaded page as used now.
+	 */
+	public void pageMapped(CoreMap coreMap, int ppn) {
+		getLastUse(coreMap.getNumFrames())[ppn] = Machine.timer().getTime();
+	}
+
+	private long[] getLastUse(int numFrames) {
+		if (lastUse == null)
+			lastUse = new long[numFrames];
+
+		return lastUse;
+	}
+
+	/** How long, in ticks, a page stays in the working set after its use. */
+	private long window;
+
+	/** The time at which the page in each frame was last seen used. */
+	private long[] lastUse = null;
+
+	private int hand = 0;
+}